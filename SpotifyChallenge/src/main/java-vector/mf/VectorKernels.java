@@ -0,0 +1,168 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the jdk.incubator.vector API, using the preferred vector size of the host (4 doubles with
+ * AVX2, 8 with AVX-512). Only compiled by the vector profile, see {@link Kernels}.
+ * <p>
+ * The dot products keep one partial sum per lane and add them at the end, so their results differ from those of
+ * {@link ScalarKernels} by rounding. The float dot product converts the values to double before multiplying, so it
+ * returns the same value as the double one on the converted vector. axpy multiplies and adds without fusing, as the
+ * scalar loop, and gives the same results.
+ */
+public class VectorKernels extends Kernels {
+
+    private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> F = VectorSpecies.of(float.class, VectorShape.forBitSize(D.vectorBitSize() / 2));
+
+    @Override
+    public double dot(double[] x, int xo, double[] y, int yo, int n) {
+        DoubleVector acc = DoubleVector.zero(D);
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            DoubleVector vx = DoubleVector.fromArray(D, x, xo + i);
+            DoubleVector vy = DoubleVector.fromArray(D, y, yo + i);
+            acc = vx.fma(vy, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Four dot products at a time, each with the lane layout of {@link #dot(double[], int, double[], int, int)}.
+     */
+    @Override
+    public void dots(double[] x, int xo, double[] y, int yo, int m, int n, double[] out, int oo) {
+        int bound = D.loopBound(n);
+        int j = 0;
+        for (; j + 4 <= m; j += 4) {
+            int y0 = yo + j * n;
+            int y1 = y0 + n;
+            int y2 = y1 + n;
+            int y3 = y2 + n;
+            DoubleVector a0 = DoubleVector.zero(D);
+            DoubleVector a1 = DoubleVector.zero(D);
+            DoubleVector a2 = DoubleVector.zero(D);
+            DoubleVector a3 = DoubleVector.zero(D);
+            int i = 0;
+            for (; i < bound; i += D.length()) {
+                DoubleVector vx = DoubleVector.fromArray(D, x, xo + i);
+                a0 = vx.fma(DoubleVector.fromArray(D, y, y0 + i), a0);
+                a1 = vx.fma(DoubleVector.fromArray(D, y, y1 + i), a1);
+                a2 = vx.fma(DoubleVector.fromArray(D, y, y2 + i), a2);
+                a3 = vx.fma(DoubleVector.fromArray(D, y, y3 + i), a3);
+            }
+            double s0 = a0.reduceLanes(VectorOperators.ADD);
+            double s1 = a1.reduceLanes(VectorOperators.ADD);
+            double s2 = a2.reduceLanes(VectorOperators.ADD);
+            double s3 = a3.reduceLanes(VectorOperators.ADD);
+            for (; i < n; i++) {
+                double xi = x[xo + i];
+                s0 += xi * y[y0 + i];
+                s1 += xi * y[y1 + i];
+                s2 += xi * y[y2 + i];
+                s3 += xi * y[y3 + i];
+            }
+            out[oo + j] = s0;
+            out[oo + j + 1] = s1;
+            out[oo + j + 2] = s2;
+            out[oo + j + 3] = s3;
+        }
+        for (; j < m; j++) {
+            out[oo + j] = dot(x, xo, y, yo + j * n, n);
+        }
+    }
+
+    @Override
+    public double dot(float[] x, int xo, double[] y, int yo, int n) {
+        DoubleVector acc = DoubleVector.zero(D);
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            DoubleVector vx = (DoubleVector) FloatVector.fromArray(F, x, xo + i).convertShape(VectorOperators.F2D, D, 0);
+            DoubleVector vy = DoubleVector.fromArray(D, y, yo + i);
+            acc = vx.fma(vy, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double dot(double[] c, double[] x, int xo, double[] y, int yo, int n) {
+        DoubleVector acc = DoubleVector.zero(D);
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            DoubleVector vc = DoubleVector.fromArray(D, c, i);
+            DoubleVector vx = DoubleVector.fromArray(D, x, xo + i);
+            DoubleVector vy = DoubleVector.fromArray(D, y, yo + i);
+            acc = vc.mul(vx).fma(vy, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += c[i] * x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public double dot(int m, double c, double[] x, int xo, double[] y, int yo, int n) {
+        DoubleVector one = DoubleVector.broadcast(D, 1.0);
+        DoubleVector rest = DoubleVector.broadcast(D, c);
+        DoubleVector acc = DoubleVector.zero(D);
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            // same lanes as the weight array of the other dot product
+            DoubleVector vc = i >= m ? rest : rest.blend(one, D.indexInRange(i, m));
+            DoubleVector vx = DoubleVector.fromArray(D, x, xo + i);
+            DoubleVector vy = DoubleVector.fromArray(D, y, yo + i);
+            acc = vc.mul(vx).fma(vy, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += (i < m ? 1.0 : c) * x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double a, double[] x, int xo, double[] y, int yo, int n) {
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            DoubleVector vx = DoubleVector.fromArray(D, x, xo + i);
+            DoubleVector vy = DoubleVector.fromArray(D, y, yo + i);
+            vx.mul(a).add(vy).intoArray(y, yo + i);
+        }
+        for (; i < n; i++) {
+            y[yo + i] += a * x[xo + i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "vector kernels (" + D.length() + " doubles)";
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.mf.Factorizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+
+/**
+ * Pairwise factorizer trained by stochastic gradient descent on sampled (user, positive item, negative item)
+ * triples, with the BPR loss of Rendle et al. (UAI 2009) or the WARP loss of Weston et al. (IJCAI 2011).
+ * <p>
+ * Every worker thread draws its own samples and writes its updates straight into the shared factor arrays without
+ * any locking, as in Hogwild! (Niu et al., NIPS 2011). Two threads seldom update the same rows at the same time
+ * because the preferences are sparse, and the occasional lost update does not hurt convergence. The threads share
+ * nothing else, so the throughput grows with the number of cores. The number of samples per second of every epoch
+ * is logged and kept in {@link #getThroughput()}.
+ * <p>
+ * Because of the unsynchronized updates, two runs with more than one thread do not produce exactly the same factors.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class BPRFactorizer<U, I> extends Factorizer<U, I> {
+
+    private static final Logger LOG = Logger.getLogger(BPRFactorizer.class.getName());
+
+    /**
+     * Pairwise loss.
+     */
+    public enum Loss {
+
+        /**
+         * Logistic loss of the difference of the scores of the positive and negative items.
+         */
+        BPR,
+
+        /**
+         * Hinge loss of the difference of the scores, weighted by the estimated rank of the positive item.
+         * Negatives are sampled until one violates the margin.
+         */
+        WARP
+    }
+
+    private final Loss loss;
+    private final double learnRate;
+    private final double regUser;
+    private final double regItem;
+    private final int numEpochs;
+    private final int numThreads;
+    private final int samplesPerEpoch;
+    private final int maxTrials;
+    private final long seed;
+    private double[] throughput = new double[0];
+
+    /**
+     * Constructor. One epoch draws as many samples as preferences, WARP tries up to 100 negatives per sample.
+     *
+     * @param loss pairwise loss
+     * @param learnRate learning rate
+     * @param regUser regularization factor of the user factors
+     * @param regItem regularization factor of the item factors
+     * @param numEpochs number of epochs
+     * @param numThreads number of worker threads
+     */
+    public BPRFactorizer(Loss loss, double learnRate, double regUser, double regItem, int numEpochs, int numThreads) {
+        this(loss, learnRate, regUser, regItem, numEpochs, numThreads, 0, 100, 1987);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param loss pairwise loss
+     * @param learnRate learning rate
+     * @param regUser regularization factor of the user factors
+     * @param regItem regularization factor of the item factors
+     * @param numEpochs number of epochs
+     * @param numThreads number of worker threads
+     * @param samplesPerEpoch number of samples of every epoch, 0 for the number of preferences
+     * @param maxTrials maximum number of negatives drawn for a sample with the WARP loss
+     * @param seed random seed of the initialization and the samples
+     */
+    public BPRFactorizer(Loss loss, double learnRate, double regUser, double regItem, int numEpochs, int numThreads, int samplesPerEpoch, int maxTrials, long seed) {
+        this.loss = loss;
+        this.learnRate = learnRate;
+        this.regUser = regUser;
+        this.regItem = regItem;
+        this.numEpochs = numEpochs;
+        this.numThreads = numThreads;
+        this.samplesPerEpoch = samplesPerEpoch;
+        this.maxTrials = maxTrials;
+        this.seed = seed;
+    }
+
+    /**
+     * Samples per second of every epoch of the last factorization.
+     *
+     * @return throughput of every epoch
+     */
+    public double[] getThroughput() {
+        return throughput.clone();
+    }
+
+    /**
+     * Mean pairwise loss over a fixed sample of triples, i.e. the logistic loss for BPR and the unweighted hinge
+     * loss for WARP.
+     *
+     * @param factorization factorization
+     * @param data preference data
+     * @return estimation of the mean pairwise loss
+     */
+    @Override
+    public double error(Factorization<U, I> factorization, FastPreferenceData<U, I> data) {
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+        return error(heap(flat.getUserFactors()), heap(flat.getItemFactors()), flat.getK(), new Positives(data), 10000);
+    }
+
+    private double error(double[] p, double[] q, int K, Positives positives, int numSamples) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double sum = 0.0;
+        for (int s = 0; s < numSamples; s++) {
+            int o = random.nextInt(positives.items.length);
+            int u = positives.users[o];
+            int i = positives.items[o];
+            int j = positives.sampleNegative(u, random);
+            double x = 0.0;
+            for (int k = 0; k < K; k++) {
+                x += p[u * K + k] * (q[i * K + k] - q[j * K + k]);
+            }
+            sum += loss == Loss.BPR ? log(1 + exp(-x)) : Math.max(0.0, 1.0 - x);
+        }
+        return sum / numSamples;
+    }
+
+    @Override
+    public Factorization<U, I> factorize(int K, FastPreferenceData<U, I> data) {
+        Random random = new Random(seed);
+        double std = 0.1;
+        // users first, then items, as in MFALSFactorizer
+        DoubleFactorMatrix p = new DoubleFactorMatrix(data.numUsers(), K);
+        double[] pe = p.elements();
+        for (int o = 0; o < pe.length; o++) {
+            pe[o] = std * random.nextGaussian();
+        }
+        DoubleFactorMatrix q = new DoubleFactorMatrix(data.numItems(), K);
+        double[] qe = q.elements();
+        for (int o = 0; o < qe.length; o++) {
+            qe[o] = std * random.nextGaussian();
+        }
+        FlatFactorization<U, I> factorization = new FlatFactorization<>(data, data, p, q);
+        factorize(factorization, data);
+        return factorization;
+    }
+
+    @Override
+    public void factorize(Factorization<U, I> factorization, FastPreferenceData<U, I> data) {
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+        final double[] p = heap(flat.getUserFactors());
+        final double[] q = heap(flat.getItemFactors());
+        final int K = flat.getK();
+        final Positives positives = new Positives(data);
+        if (positives.items.length == 0) {
+            return;
+        }
+        final int numSamples = samplesPerEpoch > 0 ? samplesPerEpoch : positives.items.length;
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setName("bpr-worker-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        throughput = new double[numEpochs];
+        try {
+            for (int epoch = 1; epoch <= numEpochs; epoch++) {
+                long time0 = System.nanoTime();
+
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int t = 0; t < numThreads; t++) {
+                    SplittableRandom random = new SplittableRandom(seed + (long) epoch * numThreads + t);
+                    int n = numSamples / numThreads + (t < numSamples % numThreads ? 1 : 0);
+                    tasks.add(() -> {
+                        run(p, q, K, positives, n, random);
+                        return null;
+                    });
+                }
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+
+                int iter = epoch;
+                double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+                throughput[epoch - 1] = numSamples / time1;
+                LOG.log(Level.INFO, String.format("epoch n = %3d t = %.2fs samples/s = %.0f", iter, time1, throughput[epoch - 1]));
+                LOG.log(Level.FINE, () -> String.format("epoch n = %3d e = %.6f", iter, error(p, q, K, positives, 10000)));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        if (flat != factorization) {
+            ((DoubleFactorMatrix) flat.getUserFactors()).copyTo(factorization.getUserMatrix());
+            ((DoubleFactorMatrix) flat.getItemFactors()).copyTo(factorization.getItemMatrix());
+        }
+    }
+
+    /**
+     * Samples of one worker thread. The reads and writes of the shared arrays are deliberately unsynchronized.
+     */
+    private void run(double[] p, double[] q, int K, Positives positives, int numSamples, SplittableRandom random) {
+        final double lr = learnRate;
+        final double[] pu = new double[K];
+        final int numItems = positives.numItems;
+        final double maxWeight = log(numItems);
+
+        for (int s = 0; s < numSamples; s++) {
+            int o = random.nextInt(positives.items.length);
+            int u = positives.users[o];
+            int i = positives.items[o];
+            int ou = u * K;
+            int oi = i * K;
+            System.arraycopy(p, ou, pu, 0, K);
+
+            int j;
+            double g;
+            if (loss == Loss.BPR) {
+                j = positives.sampleNegative(u, random);
+                int oj = j * K;
+                double x = 0.0;
+                for (int k = 0; k < K; k++) {
+                    x += pu[k] * (q[oi + k] - q[oj + k]);
+                }
+                g = 1.0 / (1.0 + exp(x));
+            } else {
+                double xi = 0.0;
+                for (int k = 0; k < K; k++) {
+                    xi += pu[k] * q[oi + k];
+                }
+                j = -1;
+                int trials = 0;
+                while (trials < maxTrials) {
+                    trials++;
+                    int j2 = positives.sampleNegative(u, random);
+                    int oj = j2 * K;
+                    double xj = 0.0;
+                    for (int k = 0; k < K; k++) {
+                        xj += pu[k] * q[oj + k];
+                    }
+                    if (xj > xi - 1.0) {
+                        j = j2;
+                        break;
+                    }
+                }
+                if (j < 0) {
+                    continue;
+                }
+                // rank of the positive item estimated from the number of trials until a violation, the weight
+                // log(rank) is divided by its maximum so that the learning rate means the same as with BPR
+                g = log(1 + (numItems - 1) / trials) / maxWeight;
+            }
+
+            int oj = j * K;
+            for (int k = 0; k < K; k++) {
+                double qik = q[oi + k];
+                double qjk = q[oj + k];
+                p[ou + k] += lr * (g * (qik - qjk) - regUser * pu[k]);
+                q[oi + k] += lr * (g * pu[k] - regItem * qik);
+                q[oj + k] += lr * (-g * pu[k] - regItem * qjk);
+            }
+        }
+    }
+
+    private static double[] heap(FactorMatrix m) {
+        if (!(m instanceof DoubleFactorMatrix)) {
+            throw new IllegalArgumentException("BPRFactorizer updates double factors on the heap, got " + m.getClass().getSimpleName());
+        }
+        return ((DoubleFactorMatrix) m).elements();
+    }
+
+    /**
+     * Preferences in compressed sparse row format, with the items of every user sorted, plus the user of every
+     * preference so that a preference can be drawn uniformly with a single random number.
+     */
+    private static final class Positives {
+
+        private final int numUsers;
+        private final int numItems;
+        private final int[] offsets;
+        private final int[] users;
+        private final int[] items;
+
+        private Positives(FastPreferenceData<?, ?> data) {
+            this.numUsers = data.numUsers();
+            this.numItems = data.numItems();
+            this.offsets = new int[numUsers + 1];
+            for (int uidx = 0; uidx < numUsers; uidx++) {
+                offsets[uidx + 1] = offsets[uidx] + data.numItems(uidx);
+            }
+            this.users = new int[offsets[numUsers]];
+            this.items = new int[offsets[numUsers]];
+            data.getUidxWithPreferences().parallel().forEach(uidx -> {
+                int[] o = {offsets[uidx]};
+                data.getUidxPreferences(uidx).forEach(iv -> {
+                    users[o[0]] = uidx;
+                    items[o[0]++] = iv.v1;
+                });
+                Arrays.sort(items, offsets[uidx], offsets[uidx + 1]);
+            });
+        }
+
+        /**
+         * Draws an item uniformly among the items without a preference of the user. Gives up after a few tries for
+         * users that like almost every item.
+         */
+        private int sampleNegative(int uidx, SplittableRandom random) {
+            int j;
+            int tries = 0;
+            do {
+                j = random.nextInt(numItems);
+            } while (Arrays.binarySearch(items, offsets[uidx], offsets[uidx + 1], j) >= 0 && ++tries < 100);
+            return j;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.TransposedPreferenceData;
+
+import java.util.stream.IntStream;
+
+/**
+ * {@link MFFactorizer} for binary implicit data, where every preference is 1 and the confidence function is
+ * 1 + alpha x. Every preference then has the same confidence 1 + alpha and the same RR1 target (1 + alpha) / alpha,
+ * so the RR1 problems need only the indices of the preferences: the preferences are read once into compressed index
+ * lists, and the RR1 sweeps use the two constants instead of the per-entry value, confidence and target arrays of
+ * MFFactorizer.
+ * <p>
+ * It produces the same factors as MFFactorizer with confidence x -&gt; 1 + alpha * x and per-thread workspaces.
+ * <p>
+ * Factorizers trained on the same data can share their index lists ({@link SharedLists}), so that several
+ * configurations trained at the same time keep a single copy of them. The RR1 workspaces are not shared: every
+ * factorizer has one per thread that runs its row updates, of about {@link #workspaceBytes(int, int)} bytes.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class BinaryMFFactorizer<U, I> extends MFFactorizer<U, I> {
+
+    private final double alpha;
+    private IndexLists userLists = null;
+    private IndexLists itemLists = null;
+    private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Constructor. Same regularization factor for user and item matrices.
+     *
+     * @param lambda regularization factor
+     * @param alpha confidence of the preferences is 1 + alpha
+     * @param numIter number of iterations
+     */
+    public BinaryMFFactorizer(double lambda, double alpha, int numIter) {
+        this(lambda, lambda, alpha, numIter, false);
+    }
+
+    /**
+     * Constructor. Different regularization factors for user and item matrices.
+     *
+     * @param lambdaP regularization factor for user matrix
+     * @param lambdaQ regularization factor for item matrix
+     * @param alpha confidence of the preferences is 1 + alpha
+     * @param numIter number of iterations
+     * @param floatFactors true to store the factors in single precision
+     */
+    public BinaryMFFactorizer(double lambdaP, double lambdaQ, double alpha, int numIter, boolean floatFactors) {
+        super(lambdaP, lambdaQ, x -> 1 + alpha * x, numIter, true, floatFactors);
+        this.alpha = alpha;
+    }
+
+    /**
+     * Uses index lists built beforehand instead of building them in the first iteration.
+     *
+     * @param lists index lists of the data that will be factorized
+     */
+    public void setSharedLists(SharedLists lists) {
+        this.userLists = lists.userLists;
+        this.itemLists = lists.itemLists;
+    }
+
+    @Override
+    public void set_minP(final FactorMatrix p, final FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs) {
+        if (userLists == null || userLists.source != data) {
+            userLists = new IndexLists(data, data);
+        }
+        set_min(p, q, lambdaP, userLists, uidxs);
+    }
+
+    @Override
+    public void set_minQ(final FactorMatrix q, final FactorMatrix p, FastPreferenceData<U, I> data, int[] iidxs) {
+        if (itemLists == null || itemLists.source != data) {
+            itemLists = new IndexLists(data, new TransposedPreferenceData<>(data));
+        }
+        set_min(q, p, lambdaQ, itemLists, iidxs);
+    }
+
+    private void set_min(final FactorMatrix p, final FactorMatrix q, double lambda, IndexLists lists, int[] uidxs) {
+        final int K = p.columns();
+        long time0 = System.nanoTime();
+        double[] gram = getGram(q, lambda);
+        long time1 = System.nanoTime();
+        double[] gtRows = getGtRows(gram, K);
+        long time2 = System.nanoTime();
+        final double cui = 1 + alpha;
+        final double c = cui - 1;
+        final double y = cui / c;
+
+        int[] rows = IntStream.of(uidxs).filter(uidx -> lists.size(uidx) > 0).toArray();
+        int maxN = IntStream.of(rows).map(lists::size).max().orElse(0);
+        forEachRow(rows, uidx -> K + lists.size(uidx), uidx -> {
+            Workspace ws = workspaces.get();
+            ws.ensureCapacity(K, maxN);
+            int S = ws.stride;
+            double[] x = ws.x;
+            double[] row = ws.row;
+
+            for (int k = 0; k < K; k++) {
+                for (int i = 0; i < K; i++) {
+                    x[k * S + i] = gtRows[i * K + k];
+                }
+            }
+            int j = K;
+            for (int o = lists.offsets[uidx]; o < lists.offsets[uidx + 1]; o++) {
+                q.getRow(lists.idxs[o], row, 0);
+                for (int k = 0; k < K; k++) {
+                    x[k * S + j] = row[k];
+                }
+                j++;
+            }
+
+            double[] w = ws.w;
+            p.getRow(uidx, w, 0);
+            doRR1(1, w, x, S, y, c, ws.e, j, K, lambda);
+            p.setRow(uidx, w, 0);
+        });
+        long time3 = System.nanoTime();
+
+        addPhaseTime("gram", time1 - time0);
+        addPhaseTime("eig", time2 - time1);
+        addPhaseTime("rows", time3 - time2);
+    }
+
+    /**
+     * Memory of the RR1 workspace of a thread.
+     *
+     * @param K number of latent factors
+     * @param maxN largest number of preferences of a user or an item, see {@link SharedLists#maxSize()}
+     * @return number of bytes
+     */
+    public static long workspaceBytes(int K, int maxN) {
+        long n = K + (long) maxN;
+        return 8 * (n * K + n + 2L * K);
+    }
+
+    /**
+     * Index lists of the users and of the items of some preference data, built once for all the factorizers that
+     * are trained on it.
+     */
+    public static final class SharedLists {
+
+        private final IndexLists userLists;
+        private final IndexLists itemLists;
+
+        /**
+         * Constructor.
+         *
+         * @param data binary preference data
+         */
+        public SharedLists(FastPreferenceData<?, ?> data) {
+            this.userLists = new IndexLists(data, data);
+            this.itemLists = new IndexLists(data, new TransposedPreferenceData<>(data));
+        }
+
+        /**
+         * Memory used by the lists.
+         *
+         * @return number of bytes
+         */
+        public long bytes() {
+            return 4L * (userLists.offsets.length + userLists.idxs.length + itemLists.offsets.length + itemLists.idxs.length);
+        }
+
+        /**
+         * Largest number of preferences of a user or an item.
+         *
+         * @return length of the longest list
+         */
+        public int maxSize() {
+            return Math.max(userLists.maxSize(), itemLists.maxSize());
+        }
+    }
+
+    /**
+     * Preference indices of every row in compressed sparse row format.
+     */
+    private static final class IndexLists {
+
+        private final FastPreferenceData<?, ?> source;
+        private final int[] offsets;
+        private final int[] idxs;
+
+        private IndexLists(FastPreferenceData<?, ?> source, FastPreferenceData<?, ?> data) {
+            this.source = source;
+            this.offsets = new int[data.numUsers() + 1];
+            for (int uidx = 0; uidx < data.numUsers(); uidx++) {
+                offsets[uidx + 1] = offsets[uidx] + data.numItems(uidx);
+            }
+            this.idxs = new int[offsets[data.numUsers()]];
+            data.getUidxWithPreferences().parallel().forEach(uidx -> {
+                int[] o = {offsets[uidx]};
+                data.getUidxPreferences(uidx).forEach(iv -> {
+                    if (iv.v2 != 1.0) {
+                        throw new IllegalArgumentException("preference of value " + iv.v2 + " in binary data");
+                    }
+                    idxs[o[0]++] = iv.v1;
+                });
+            });
+        }
+
+        private int size(int uidx) {
+            return offsets[uidx + 1] - offsets[uidx];
+        }
+
+        private int maxSize() {
+            int max = 0;
+            for (int uidx = 0; uidx + 1 < offsets.length; uidx++) {
+                max = Math.max(max, size(uidx));
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Per-thread scratch buffers, sized to the longest index list of the current half-iteration.
+     */
+    private static final class Workspace {
+
+        private int stride = 0;
+        private double[] x = new double[0];
+        private double[] e = new double[0];
+        private double[] w = new double[0];
+        private double[] row = new double[0];
+
+        private void ensureCapacity(int K, int maxN) {
+            int n = K + maxN;
+            if (e.length < n || w.length != K) {
+                stride = n;
+                x = new double[n * K];
+                e = new double[n];
+                w = new double[K];
+                row = new double[K];
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Periodic checkpoints of the factors of an ALS run, stored as {@link FactorizationSnapshot} files named
+ * checkpoint-&lt;iteration&gt;.snap in a directory. The state of the early stopping policy, if any, is stored next
+ * to it in checkpoint-&lt;iteration&gt;.state, written before the snapshot.
+ * <p>
+ * The solver thread only copies the matrices, a background thread writes the copy. At most one write is pending, so
+ * checkpointing needs the memory of one extra copy of P and Q. Once a checkpoint is written the previous one is
+ * deleted.
+ */
+public class Checkpoints {
+
+    private static final Logger LOG = Logger.getLogger(Checkpoints.class.getName());
+
+    private static final Pattern NAME = Pattern.compile("checkpoint-(\\d+)\\.snap");
+
+    private final File directory;
+    private final int interval;
+    private final ExecutorService writer;
+    private Future<?> pending;
+    private volatile File last;
+    private double[] restoredState;
+
+    /**
+     * Constructor.
+     *
+     * @param directory directory of the checkpoints, created if it does not exist
+     * @param interval a checkpoint is written every interval iterations
+     */
+    public Checkpoints(String directory, int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        }
+        this.directory = new File(directory);
+        this.interval = interval;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pending = null;
+        this.last = null;
+        this.restoredState = null;
+    }
+
+    private static File stateFile(File snapshot) {
+        String name = snapshot.getName();
+        return new File(snapshot.getParentFile(), name.substring(0, name.length() - ".snap".length()) + ".state");
+    }
+
+    /**
+     * Copies the factors of the latest checkpoint into a factorization. Its early stopping state is then available
+     * from {@link #restoredState()}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param factorization factorization whose matrices are overwritten
+     * @return iteration of the checkpoint, 0 if there is none
+     */
+    public <U, I> int restore(FlatFactorization<U, I> factorization) {
+        restoredState = null;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int iter = 0;
+        for (File file : files) {
+            Matcher m = NAME.matcher(file.getName());
+            if (m.matches() && Integer.parseInt(m.group(1)) > iter) {
+                iter = Integer.parseInt(m.group(1));
+                last = file;
+            }
+        }
+        if (iter == 0) {
+            return 0;
+        }
+
+        FlatFactorization<String, String> checkpoint;
+        try {
+            checkpoint = FactorizationSnapshot.load(last.getPath(), CharSequence::toString, CharSequence::toString);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        File stateFile = stateFile(last);
+        if (stateFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+                restoredState = new double[in.readInt()];
+                for (int i = 0; i < restoredState.length; i++) {
+                    restoredState[i] = in.readDouble();
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        copy(checkpoint.getUserFactors(), factorization.getUserFactors(), last);
+        copy(checkpoint.getItemFactors(), factorization.getItemFactors(), last);
+        for (int uidx = 0; uidx < factorization.numUsers(); uidx++) {
+            if (!checkpoint.uidx2user(uidx).equals(factorization.uidx2user(uidx).toString())) {
+                throw new IllegalStateException(last + " was written for a different user index");
+            }
+        }
+        for (int iidx = 0; iidx < factorization.numItems(); iidx++) {
+            if (!checkpoint.iidx2item(iidx).equals(factorization.iidx2item(iidx).toString())) {
+                throw new IllegalStateException(last + " was written for a different item index");
+            }
+        }
+
+        return iter;
+    }
+
+    /**
+     * Early stopping state of the checkpoint read by the last call of {@link #restore(FlatFactorization)}.
+     *
+     * @return state passed to {@link #submit(int, FlatFactorization, double[])}, null if the checkpoint has none
+     */
+    public double[] restoredState() {
+        return restoredState;
+    }
+
+    private static void copy(FactorMatrix src, FactorMatrix dst, File file) {
+        if (src.rows() != dst.rows() || src.columns() != dst.columns()) {
+            throw new IllegalStateException(file + " has " + src.rows() + " x " + src.columns() + " factors, expected " + dst.rows() + " x " + dst.columns());
+        }
+        double[] row = new double[src.columns()];
+        for (int i = 0; i < src.rows(); i++) {
+            src.getRow(i, row, 0);
+            dst.setRow(i, row, 0);
+        }
+    }
+
+    /**
+     * Writes a checkpoint in the background if the iteration is a multiple of the interval.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param iter iteration that has just finished
+     * @param factorization factorization after the iteration
+     * @param state state of the early stopping policy after the iteration, null if there is none
+     */
+    public <U, I> void submit(int iter, FlatFactorization<U, I> factorization, double[] state) {
+        if (iter % interval != 0) {
+            return;
+        }
+        await();
+
+        FlatFactorization<U, I> copy = new FlatFactorization<>(factorization, factorization,
+                factorization.getUserFactors().copy(), factorization.getItemFactors().copy());
+        File file = new File(directory, "checkpoint-" + iter + ".snap");
+        double[] stateCopy = state == null ? null : state.clone();
+        pending = writer.submit(() -> {
+            try {
+                long time0 = System.nanoTime();
+                directory.mkdirs();
+                if (stateCopy != null) {
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile(file))))) {
+                        out.writeInt(stateCopy.length);
+                        for (double value : stateCopy) {
+                            out.writeDouble(value);
+                        }
+                    }
+                }
+                FactorizationSnapshot.save(copy, file.getPath());
+                if (last != null && !last.equals(file)) {
+                    last.delete();
+                    stateFile(last).delete();
+                }
+                last = file;
+                LOG.log(Level.INFO, String.format("checkpoint n = %3d t = %.2fs", iter, (System.nanoTime() - time0) / 1_000_000_000.0));
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "could not write " + file, ex);
+            }
+        });
+    }
+
+    /**
+     * Waits for the pending checkpoint, if any, to be written.
+     */
+    public void await() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOG.log(Level.SEVERE, "checkpoint failed", ex.getCause());
+        }
+        pending = null;
+    }
+}
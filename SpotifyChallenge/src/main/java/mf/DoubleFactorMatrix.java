@@ -0,0 +1,191 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
+import java.util.Arrays;
+
+/**
+ * Factor matrix backed by a row-major double array. The array can be shared with a Colt DenseDoubleMatrix2D, see
+ * {@link #asColt()}, so that RankSys code expecting Colt matrices sees the same values without copies.
+ */
+public class DoubleFactorMatrix extends FactorMatrix {
+
+    private final double[] data;
+    private final ColtView colt;
+
+    /**
+     * Constructor. All cells are initialized to zero.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     */
+    public DoubleFactorMatrix(int rows, int columns) {
+        this(rows, columns, new double[rows * columns]);
+    }
+
+    /**
+     * Constructor that wraps an existing array.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param data row-major array of length rows * columns
+     */
+    public DoubleFactorMatrix(int rows, int columns, double[] data) {
+        super(rows, columns);
+        if (data.length != rows * columns) {
+            throw new IllegalArgumentException("array of length " + data.length + " for a " + rows + " x " + columns + " matrix");
+        }
+        this.data = data;
+        this.colt = new ColtView(this);
+    }
+
+    /**
+     * Copies a Colt matrix.
+     *
+     * @param m Colt matrix
+     * @return factor matrix with the same values
+     */
+    public static DoubleFactorMatrix copyOf(DoubleMatrix2D m) {
+        if (m instanceof ColtView) {
+            return (DoubleFactorMatrix) ((ColtView) m).owner.copy();
+        }
+        int K = m.columns();
+        DoubleFactorMatrix copy = new DoubleFactorMatrix(m.rows(), K);
+        for (int i = 0; i < m.rows(); i++) {
+            for (int k = 0; k < K; k++) {
+                copy.data[i * K + k] = m.getQuick(i, k);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the values of this matrix into a Colt matrix of the same dimensions.
+     *
+     * @param m Colt matrix
+     */
+    public void copyTo(DoubleMatrix2D m) {
+        for (int i = 0; i < rows; i++) {
+            for (int k = 0; k < columns; k++) {
+                m.setQuick(i, k, data[i * columns + k]);
+            }
+        }
+    }
+
+    /**
+     * Returns the factor matrix behind a Colt view created by {@link #asColt()}.
+     *
+     * @param m Colt matrix
+     * @return factor matrix sharing its storage with m, null if m is not a view of a factor matrix
+     */
+    public static DoubleFactorMatrix viewOf(DoubleMatrix2D m) {
+        return m instanceof ColtView ? ((ColtView) m).owner : null;
+    }
+
+    /**
+     * Returns the backing array.
+     *
+     * @return row-major array of length rows * columns
+     */
+    public double[] elements() {
+        return data;
+    }
+
+    /**
+     * Returns a Colt matrix sharing the storage of this factor matrix.
+     *
+     * @return Colt view of this matrix
+     */
+    public DenseDoubleMatrix2D asColt() {
+        return colt;
+    }
+
+    @Override
+    public double get(int row, int k) {
+        return data[row * columns + k];
+    }
+
+    @Override
+    public void set(int row, int k, double value) {
+        data[row * columns + k] = value;
+    }
+
+    @Override
+    public void getRow(int row, double[] dst, int offset) {
+        System.arraycopy(data, row * columns, dst, offset, columns);
+    }
+
+    @Override
+    public void setRow(int row, double[] src, int offset) {
+        System.arraycopy(src, offset, data, row * columns, columns);
+    }
+
+    @Override
+    public void assignRow(int row, double value) {
+        Arrays.fill(data, row * columns, (row + 1) * columns, value);
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        return Kernels.get().dot(data, row * columns, v, 0, columns);
+    }
+
+    @Override
+    public void axpy(int row, double a, double[] y) {
+        Kernels.get().axpy(a, data, row * columns, y, 0, columns);
+    }
+
+    @Override
+    public void mult(double[] v, double[] out) {
+        final double[] x = data;
+        final int K = columns;
+        final Kernels kernels = Kernels.get();
+        for (int i = 0, offset = 0; i < rows; i++, offset += K) {
+            out[i] = kernels.dot(x, offset, v, 0, K);
+        }
+    }
+
+    @Override
+    protected void gram(int from, int to, double[] g) {
+        for (int i = from; i < to; i += TILE) {
+            gramTile(data, i * columns, Math.min(TILE, to - i), columns, g);
+        }
+    }
+
+    @Override
+    public FactorMatrix copy() {
+        return new DoubleFactorMatrix(rows, columns, data.clone());
+    }
+
+    /**
+     * Colt matrix sharing the storage of a factor matrix.
+     */
+    private static final class ColtView extends DenseDoubleMatrix2D {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient DoubleFactorMatrix owner;
+
+        private ColtView(DoubleFactorMatrix owner) {
+            super(owner.rows, owner.columns, owner.data, 0, 0, owner.columns, 1);
+            // same layout as a matrix created by Colt, which enables its fast paths
+            this.isNoView = true;
+            this.owner = owner;
+        }
+    }
+}
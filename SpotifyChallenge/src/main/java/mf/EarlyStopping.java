@@ -0,0 +1,54 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+
+/**
+ * Early stopping policy of {@link MFALSFactorizer}, checked after every iteration.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public interface EarlyStopping<U, I> {
+
+    /**
+     * Decides whether the factorization should stop.
+     *
+     * @param iter iteration that has just finished
+     * @param factorization factorization after the iteration
+     * @param data training data
+     * @return true to stop, false to run the next iteration
+     */
+    boolean stop(int iter, FlatFactorization<U, I> factorization, FastPreferenceData<U, I> data);
+
+    /**
+     * State of the policy after the last call of stop. It is saved with the checkpoints, so that a resumed run stops
+     * at the same iteration as an uninterrupted one.
+     *
+     * @return state, empty for stateless policies
+     */
+    default double[] state() {
+        return new double[0];
+    }
+
+    /**
+     * Restores a state returned by {@link #state()}.
+     *
+     * @param state state
+     */
+    default void restore(double[] state) {
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.util.stream.IntStream;
+
+/**
+ * Dense matrix of latent factors, one row per user or item, stored row-major in a single contiguous array. It
+ * replaces the Colt row views of the original RankSys code in the hot loops of training and scoring.
+ */
+public abstract class FactorMatrix {
+
+    /**
+     * Rows of the tiles of the Gram kernel.
+     */
+    protected static final int TILE = 64;
+
+    private static final int MAX_CHUNKS = 256;
+    private static final int MIN_CHUNK_ROWS = 4096;
+
+    /**
+     * Number of rows.
+     */
+    protected final int rows;
+
+    /**
+     * Number of columns, i.e., latent factors.
+     */
+    protected final int columns;
+
+    /**
+     * Constructor.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     */
+    protected FactorMatrix(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return number of rows
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of columns.
+     *
+     * @return number of columns
+     */
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * Returns a cell of the matrix.
+     *
+     * @param row row index
+     * @param k column index
+     * @return value of the cell
+     */
+    public abstract double get(int row, int k);
+
+    /**
+     * Sets a cell of the matrix.
+     *
+     * @param row row index
+     * @param k column index
+     * @param value new value of the cell
+     */
+    public abstract void set(int row, int k, double value);
+
+    /**
+     * Copies a row into an array.
+     *
+     * @param row row index
+     * @param dst destination array
+     * @param offset position of dst where the row starts
+     */
+    public abstract void getRow(int row, double[] dst, int offset);
+
+    /**
+     * Overwrites a row with the values of an array.
+     *
+     * @param row row index
+     * @param src source array
+     * @param offset position of src where the row starts
+     */
+    public abstract void setRow(int row, double[] src, int offset);
+
+    /**
+     * Assigns the same value to all the cells of a row.
+     *
+     * @param row row index
+     * @param value value
+     */
+    public abstract void assignRow(int row, double value);
+
+    /**
+     * Dot product of a row and a vector.
+     *
+     * @param row row index
+     * @param v vector of length columns()
+     * @return dot product
+     */
+    public abstract double dot(int row, double[] v);
+
+    /**
+     * Adds a multiple of a row to a vector, y = y + a * row.
+     *
+     * @param row row index
+     * @param a scalar
+     * @param y vector of length columns() to be updated
+     */
+    public abstract void axpy(int row, double a, double[] y);
+
+    /**
+     * Matrix-vector product, out[i] = row_i * v for every row.
+     *
+     * @param v vector of length columns()
+     * @param out vector of length rows() where the product is stored
+     */
+    public void mult(double[] v, double[] out) {
+        for (int i = 0; i < rows; i++) {
+            out[i] = dot(i, v);
+        }
+    }
+
+    /**
+     * Gram matrix of the factors, that is, the product of the transpose of the matrix by itself.
+     * <p>
+     * The rows are split into a fixed number of chunks, which depends only on the number of rows, and the partial
+     * Gram matrices of the chunks are computed in parallel and added in chunk order. The result is therefore the same
+     * whatever the number of threads.
+     *
+     * @return columns() x columns() matrix stored row-major
+     */
+    public double[] gram() {
+        final int K = columns;
+        int numChunks = Math.max(1, Math.min(MAX_CHUNKS, rows / MIN_CHUNK_ROWS));
+
+        double[][] partials = IntStream.range(0, numChunks).parallel().mapToObj(c -> {
+            double[] g = new double[K * K];
+            gram((int) ((long) rows * c / numChunks), (int) ((long) rows * (c + 1) / numChunks), g);
+            return g;
+        }).toArray(double[][]::new);
+
+        double[] g = new double[K * K];
+        IntStream.range(0, K).parallel().forEach(k1 -> {
+            for (int k2 = k1; k2 < K; k2++) {
+                double sum = 0.0;
+                for (double[] partial : partials) {
+                    sum += partial[k1 * K + k2];
+                }
+                g[k1 * K + k2] = sum;
+                g[k2 * K + k1] = sum;
+            }
+        });
+        return g;
+    }
+
+    /**
+     * Adds the Gram matrix of some rows to the upper triangle of g.
+     *
+     * @param from first row
+     * @param to last row, exclusive
+     * @param g columns() x columns() matrix stored row-major
+     */
+    protected void gram(int from, int to, double[] g) {
+        double[] tile = new double[TILE * columns];
+        for (int i = from; i < to; i += TILE) {
+            int n = Math.min(TILE, to - i);
+            for (int j = 0; j < n; j++) {
+                getRow(i + j, tile, j * columns);
+            }
+            gramTile(tile, 0, n, columns, g);
+        }
+    }
+
+    /**
+     * Gram kernel for a tile of consecutive rows. Every cell of the upper triangle of g is accumulated in a register
+     * over the rows of the tile, which fits in cache, so g is read and written once per tile instead of once per row.
+     *
+     * @param x array containing the tile
+     * @param offset position of x where the tile starts
+     * @param n number of rows of the tile
+     * @param K number of columns
+     * @param g K x K matrix stored row-major
+     */
+    protected static void gramTile(double[] x, int offset, int n, int K, double[] g) {
+        for (int k1 = 0; k1 < K; k1++) {
+            for (int k2 = k1; k2 < K; k2++) {
+                double sum = 0.0;
+                for (int i = 0, j = offset; i < n; i++, j += K) {
+                    sum += x[j + k1] * x[j + k2];
+                }
+                g[k1 * K + k2] += sum;
+            }
+        }
+    }
+
+    /**
+     * Deep copy of the matrix.
+     *
+     * @return copy of the matrix
+     */
+    public abstract FactorMatrix copy();
+}
@@ -0,0 +1,218 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import org.ranksys.formats.parsing.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary snapshots of a factorization: user and item matrices plus the user and item index mappings.
+ * <p>
+ * File layout (version 1, little endian):
+ * <pre>
+ * header    magic "MFSN", version, bytes per value (8 or 4), K, numUsers, numItems,
+ *           offsets of the user ids, item ids, user matrix and item matrix
+ * user ids  numUsers ids in uidx order, as modified UTF-8 strings
+ * item ids  numItems ids in iidx order, as modified UTF-8 strings
+ * P, Q      row-major matrices, each one starting at a page boundary
+ * </pre>
+ * Loading parses the ids but memory-maps the matrices, see {@link MappedFactorMatrix}, so that a model of several GB
+ * is ready to score in seconds. Files are written to a temporary file first and then renamed, so a reader never sees
+ * a partial snapshot.
+ */
+public class FactorizationSnapshot {
+
+    /**
+     * Magic number at the start of every snapshot ("MFSN").
+     */
+    public static final int MAGIC = 0x4D46534E;
+
+    /**
+     * Current version of the format.
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * 6 + 8 * 4;
+    private static final int PAGE_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private FactorizationSnapshot() {
+    }
+
+    /**
+     * Saves a factorization. Factorizations with single precision factors are saved with 4 bytes per value, the rest
+     * with 8 bytes per value.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param factorization factorization
+     * @param path file where the snapshot is written
+     * @throws IOException when the file cannot be written
+     */
+    public static <U, I> void save(Factorization<U, I> factorization, String path) throws IOException {
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+        FactorMatrix p = flat.getUserFactors();
+        FactorMatrix q = flat.getItemFactors();
+        boolean isFloat = p instanceof FloatFactorMatrix
+                || (p instanceof MappedFactorMatrix && ((MappedFactorMatrix) p).isFloat());
+        int bytesPerValue = isFloat ? 4 : 8;
+
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(ids);
+        for (int uidx = 0; uidx < p.rows(); uidx++) {
+            out.writeUTF(flat.uidx2user(uidx).toString());
+        }
+        int userIdsLength = out.size();
+        for (int iidx = 0; iidx < q.rows(); iidx++) {
+            out.writeUTF(flat.iidx2item(iidx).toString());
+        }
+        out.flush();
+
+        long userIdsOffset = HEADER_SIZE;
+        long itemIdsOffset = userIdsOffset + userIdsLength;
+        long userMatrixOffset = align(userIdsOffset + ids.size());
+        long itemMatrixOffset = align(userMatrixOffset + (long) p.rows() * p.columns() * bytesPerValue);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(bytesPerValue).putInt(p.columns()).putInt(p.rows()).putInt(q.rows());
+        header.putLong(userIdsOffset).putLong(itemIdsOffset).putLong(userMatrixOffset).putLong(itemMatrixOffset);
+        header.flip();
+
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, header, 0);
+            writeFully(channel, ByteBuffer.wrap(ids.toByteArray()), userIdsOffset);
+            writeMatrix(channel, p, bytesPerValue, userMatrixOffset);
+            writeMatrix(channel, q, bytesPerValue, itemMatrixOffset);
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot, memory-mapping its matrices.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path snapshot file
+     * @param up user parser
+     * @param ip item parser
+     * @return factorization with read-only mapped matrices
+     * @throws IOException when the file cannot be read or is not a valid snapshot
+     */
+    public static <U, I> FlatFactorization<U, I> load(String path, Parser<U> up, Parser<I> ip) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException(path + " is not a factorization snapshot");
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a factorization snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version + " in " + path);
+            }
+            int bytesPerValue = header.getInt();
+            int K = header.getInt();
+            int numUsers = header.getInt();
+            int numItems = header.getInt();
+            long userIdsOffset = header.getLong();
+            header.getLong();
+            long userMatrixOffset = header.getLong();
+            long itemMatrixOffset = header.getLong();
+
+            channel.position(userIdsOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            List<U> users = new ArrayList<>(numUsers);
+            for (int uidx = 0; uidx < numUsers; uidx++) {
+                users.add(up.parse(in.readUTF()));
+            }
+            List<I> items = new ArrayList<>(numItems);
+            for (int iidx = 0; iidx < numItems; iidx++) {
+                items.add(ip.parse(in.readUTF()));
+            }
+            FastUserIndex<U> userIndex = SimpleFastUserIndex.load(users.stream());
+            FastItemIndex<I> itemIndex = SimpleFastItemIndex.load(items.stream());
+
+            // mappings stay valid after the channel is closed
+            MappedFactorMatrix p = new MappedFactorMatrix(channel, userMatrixOffset, numUsers, K, bytesPerValue, ByteOrder.LITTLE_ENDIAN);
+            MappedFactorMatrix q = new MappedFactorMatrix(channel, itemMatrixOffset, numItems, K, bytesPerValue, ByteOrder.LITTLE_ENDIAN);
+
+            return new FlatFactorization<>(userIndex, itemIndex, p, q);
+        }
+    }
+
+    private static long align(long position) {
+        return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    private static void writeMatrix(FileChannel channel, FactorMatrix m, int bytesPerValue, long position) throws IOException {
+        int K = m.columns();
+        double[] row = new double[K];
+        int rowBytes = K * bytesPerValue;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < m.rows(); i++) {
+            if (buffer.remaining() < rowBytes) {
+                buffer.flip();
+                position += writeFully(channel, buffer, position);
+                buffer.clear();
+            }
+            m.getRow(i, row, 0);
+            for (int k = 0; k < K; k++) {
+                if (bytesPerValue == 4) {
+                    buffer.putFloat((float) row[k]);
+                } else {
+                    buffer.putDouble(row[k]);
+                }
+            }
+        }
+        buffer.flip();
+        writeFully(channel, buffer, position);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int n = 0;
+        while (buffer.hasRemaining()) {
+            n += channel.write(buffer, position + n);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+
+/**
+ * Factorization whose user and item matrices are flat {@link FactorMatrix} instances. For double precision factors
+ * the Colt matrices seen by RankSys consumers (e.g. MFRecommender) share the storage of the factor matrices, so both
+ * views are always in sync. Single precision and memory-mapped factors have no Colt matrices, use
+ * {@link mf.rec.FlatMFRecommender} to score them.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class FlatFactorization<U, I> extends Factorization<U, I> {
+
+    /**
+     * User factors.
+     */
+    protected final FactorMatrix userFactors;
+
+    /**
+     * Item factors.
+     */
+    protected final FactorMatrix itemFactors;
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param userFactors user factor matrix
+     * @param itemFactors item factor matrix
+     */
+    public FlatFactorization(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, FactorMatrix userFactors, FactorMatrix itemFactors) {
+        super(uIndex, iIndex, asColt(userFactors), asColt(itemFactors), userFactors.columns());
+        this.userFactors = userFactors;
+        this.itemFactors = itemFactors;
+    }
+
+    /**
+     * Returns a flat version of a factorization. If it already is flat it is returned as it is, otherwise the
+     * matrices are copied.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param factorization factorization
+     * @return flat factorization
+     */
+    public static <U, I> FlatFactorization<U, I> of(Factorization<U, I> factorization) {
+        if (factorization instanceof FlatFactorization) {
+            return (FlatFactorization<U, I>) factorization;
+        }
+        return new FlatFactorization<>(factorization, factorization,
+                DoubleFactorMatrix.copyOf(factorization.getUserMatrix()),
+                DoubleFactorMatrix.copyOf(factorization.getItemMatrix()));
+    }
+
+    private static DenseDoubleMatrix2D asColt(FactorMatrix m) {
+        return m instanceof DoubleFactorMatrix ? ((DoubleFactorMatrix) m).asColt() : null;
+    }
+
+    @Override
+    public DoubleMatrix1D getUserVector(U u) {
+        int uidx = user2uidx(u);
+        return uidx < 0 ? null : getRow(userFactors, uidx);
+    }
+
+    @Override
+    public DoubleMatrix1D getItemVector(I i) {
+        int iidx = item2iidx(i);
+        return iidx < 0 ? null : getRow(itemFactors, iidx);
+    }
+
+    private static DoubleMatrix1D getRow(FactorMatrix m, int idx) {
+        if (m instanceof DoubleFactorMatrix) {
+            return ((DoubleFactorMatrix) m).asColt().viewRow(idx);
+        }
+        double[] row = new double[m.columns()];
+        m.getRow(idx, row, 0);
+        return new DenseDoubleMatrix1D(row);
+    }
+
+    @Override
+    public DenseDoubleMatrix2D getUserMatrix() {
+        if (userMatrix == null) {
+            throw new UnsupportedOperationException("only double factors on the heap have a Colt matrix");
+        }
+        return userMatrix;
+    }
+
+    @Override
+    public DenseDoubleMatrix2D getItemMatrix() {
+        if (itemMatrix == null) {
+            throw new UnsupportedOperationException("only double factors on the heap have a Colt matrix");
+        }
+        return itemMatrix;
+    }
+
+    /**
+     * Returns the user factor matrix.
+     *
+     * @return user factor matrix
+     */
+    public FactorMatrix getUserFactors() {
+        return userFactors;
+    }
+
+    /**
+     * Returns the item factor matrix.
+     *
+     * @return item factor matrix
+     */
+    public FactorMatrix getItemFactors() {
+        return itemFactors;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import cern.colt.function.DoubleFunction;
+
+import java.util.Arrays;
+
+/**
+ * Single-precision factor matrix backed by a row-major float array. It halves the memory of the factors, while dot
+ * products, Gram matrices and row copies convert to double and accumulate in double precision.
+ */
+public class FloatFactorMatrix extends FactorMatrix {
+
+    private final float[] data;
+
+    /**
+     * Constructor. All cells are initialized to zero.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     */
+    public FloatFactorMatrix(int rows, int columns) {
+        this(rows, columns, new float[rows * columns]);
+    }
+
+    /**
+     * Constructor that wraps an existing array.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param data row-major array of length rows * columns
+     */
+    public FloatFactorMatrix(int rows, int columns, float[] data) {
+        super(rows, columns);
+        if (data.length != rows * columns) {
+            throw new IllegalArgumentException("array of length " + data.length + " for a " + rows + " x " + columns + " matrix");
+        }
+        this.data = data;
+    }
+
+    /**
+     * Returns the backing array.
+     *
+     * @return row-major array of length rows * columns
+     */
+    public float[] elements() {
+        return data;
+    }
+
+    /**
+     * Assigns to every cell the result of a function of its current value. Cells are visited in the same order as
+     * Colt's DenseDoubleMatrix2D.assign, so a seeded random initialization draws the same values as the double
+     * matrices.
+     *
+     * @param function function
+     * @return this matrix
+     */
+    public FloatFactorMatrix assign(DoubleFunction function) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) function.apply(data[i]);
+        }
+        return this;
+    }
+
+    @Override
+    public double get(int row, int k) {
+        return data[row * columns + k];
+    }
+
+    @Override
+    public void set(int row, int k, double value) {
+        data[row * columns + k] = (float) value;
+    }
+
+    @Override
+    public void getRow(int row, double[] dst, int offset) {
+        int j = row * columns;
+        for (int k = 0; k < columns; k++) {
+            dst[offset + k] = data[j + k];
+        }
+    }
+
+    @Override
+    public void setRow(int row, double[] src, int offset) {
+        int j = row * columns;
+        for (int k = 0; k < columns; k++) {
+            data[j + k] = (float) src[offset + k];
+        }
+    }
+
+    @Override
+    public void assignRow(int row, double value) {
+        Arrays.fill(data, row * columns, (row + 1) * columns, (float) value);
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        return Kernels.get().dot(data, row * columns, v, 0, columns);
+    }
+
+    @Override
+    public void axpy(int row, double a, double[] y) {
+        final float[] x = data;
+        final int K = columns;
+        int offset = row * K;
+        for (int k = 0; k < K; k++) {
+            y[k] += a * x[offset + k];
+        }
+    }
+
+    @Override
+    public void mult(double[] v, double[] out) {
+        final float[] x = data;
+        final int K = columns;
+        final Kernels kernels = Kernels.get();
+        for (int i = 0, offset = 0; i < rows; i++, offset += K) {
+            out[i] = kernels.dot(x, offset, v, 0, K);
+        }
+    }
+
+    @Override
+    public FactorMatrix copy() {
+        return new FloatFactorMatrix(rows, columns, data.clone());
+    }
+}
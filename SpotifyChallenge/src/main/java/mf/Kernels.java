@@ -0,0 +1,169 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inner loops of the factorizers and of MF scoring: dot products, weighted dot products and axpy updates over
+ * contiguous ranges of arrays.
+ * <p>
+ * {@link ScalarKernels} is the plain Java implementation. Building with the vector profile ({@code mvn -Pvector})
+ * on JDK 17 or later adds mf.VectorKernels, written with the jdk.incubator.vector API. It is loaded by reflection
+ * when the JVM runs with {@code --add-modules jdk.incubator.vector}; otherwise, or with
+ * {@code -Dmf.kernels=scalar}, the scalar kernels are used.
+ */
+public abstract class Kernels {
+
+    private static final Logger LOG = Logger.getLogger(Kernels.class.getName());
+
+    private static volatile Kernels kernels = load();
+
+    /**
+     * Kernels used by the factor matrices and factorizers.
+     *
+     * @return current kernels
+     */
+    public static Kernels get() {
+        return kernels;
+    }
+
+    /**
+     * Replaces the current kernels, e.g. to compare implementations in the same JVM.
+     *
+     * @param kernels new kernels
+     */
+    public static void set(Kernels kernels) {
+        Kernels.kernels = kernels;
+    }
+
+    /**
+     * Vector kernels, if they are compiled and the incubator module is available.
+     *
+     * @return vector kernels, null if they cannot be loaded
+     */
+    public static Kernels vector() {
+        try {
+            return (Kernels) Class.forName("mf.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            LOG.log(Level.FINE, "vector kernels not available", ex);
+            return null;
+        }
+    }
+
+    private static Kernels load() {
+        Kernels vector = "scalar".equals(System.getProperty("mf.kernels")) ? null : vector();
+        Kernels loaded = vector != null ? vector : new ScalarKernels();
+        LOG.log(Level.INFO, "using " + loaded);
+        return loaded;
+    }
+
+    /**
+     * Dot product, x[xo..xo+n) * y[yo..yo+n).
+     *
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y second array
+     * @param yo offset of the second vector
+     * @param n length of the vectors
+     * @return dot product
+     */
+    public abstract double dot(double[] x, int xo, double[] y, int yo, int n);
+
+    /**
+     * Dot products of a vector with m vectors stored contiguously, out[oo+j] = x[xo..xo+n) * y[yo+j*n..yo+(j+1)*n).
+     * Every result is the same as the one of {@link #dot(double[], int, double[], int, int)}, implementations can
+     * compute several of them at once to reuse the loads of x.
+     *
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y array with the other vectors
+     * @param yo offset of the first of the other vectors
+     * @param m number of other vectors
+     * @param n length of the vectors
+     * @param out array where the dot products are stored
+     * @param oo offset of out
+     */
+    public void dots(double[] x, int xo, double[] y, int yo, int m, int n, double[] out, int oo) {
+        for (int j = 0; j < m; j++) {
+            out[oo + j] = dot(x, xo, y, yo + j * n, n);
+        }
+    }
+
+    /**
+     * Dot product of a single and a double precision vector, accumulated in double precision. It returns the same
+     * value as {@link #dot(double[], int, double[], int, int)} on x converted to double.
+     *
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y second array
+     * @param yo offset of the second vector
+     * @param n length of the vectors
+     * @return dot product
+     */
+    public abstract double dot(float[] x, int xo, double[] y, int yo, int n);
+
+    /**
+     * Weighted dot product, sum of c[i] * x[xo+i] * y[yo+i] for i in [0, n).
+     *
+     * @param c weights
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y second array
+     * @param yo offset of the second vector
+     * @param n length of the vectors
+     * @return weighted dot product
+     */
+    public abstract double dot(double[] c, double[] x, int xo, double[] y, int yo, int n);
+
+    /**
+     * Weighted dot product with weight 1 for the first m terms and c for the rest. It returns the same value as
+     * {@link #dot(double[], double[], int, double[], int, int)} with such a weight array, without reading it.
+     *
+     * @param m number of terms of weight 1
+     * @param c weight of the rest of the terms
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y second array
+     * @param yo offset of the second vector
+     * @param n length of the vectors
+     * @return weighted dot product
+     */
+    public double dot(int m, double c, double[] x, int xo, double[] y, int yo, int n) {
+        double sum = 0.0;
+        int i = 0;
+        for (int head = Math.min(m, n); i < head; i++) {
+            // 1.0 * x is exactly x
+            sum += x[xo + i] * y[yo + i];
+        }
+        for (; i < n; i++) {
+            sum += c * x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    /**
+     * y[yo..yo+n) += a * x[xo..xo+n).
+     *
+     * @param a scalar
+     * @param x first array
+     * @param xo offset of the first vector
+     * @param y second array, updated
+     * @param yo offset of the second vector
+     * @param n length of the vectors
+     */
+    public abstract void axpy(double a, double[] x, int xo, double[] y, int yo, int n);
+}
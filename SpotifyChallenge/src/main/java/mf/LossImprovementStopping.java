@@ -0,0 +1,85 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops when the relative improvement of the squared loss falls below a threshold. The loss is estimated on a fixed
+ * sample of the users with {@link MFALSFactorizer#error(es.uam.eps.ir.ranksys.mf.Factorization, FastPreferenceData, int[])},
+ * so checking it costs a small fraction of an iteration.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class LossImprovementStopping<U, I> implements EarlyStopping<U, I> {
+
+    private static final Logger LOG = Logger.getLogger(LossImprovementStopping.class.getName());
+
+    private final MFALSFactorizer<U, I> factorizer;
+    private final int sampleSize;
+    private final double minImprovement;
+    private final long seed;
+    private int[] sample;
+    private double lastError;
+
+    /**
+     * Constructor.
+     *
+     * @param factorizer factorizer whose loss is estimated
+     * @param sampleSize number of users of the sample
+     * @param minImprovement minimum relative decrease of the loss, e.g. 0.001
+     * @param seed random seed of the sample
+     */
+    public LossImprovementStopping(MFALSFactorizer<U, I> factorizer, int sampleSize, double minImprovement, long seed) {
+        this.factorizer = factorizer;
+        this.sampleSize = sampleSize;
+        this.minImprovement = minImprovement;
+        this.seed = seed;
+        this.sample = null;
+        this.lastError = Double.NaN;
+    }
+
+    @Override
+    public boolean stop(int iter, FlatFactorization<U, I> factorization, FastPreferenceData<U, I> data) {
+        if (sample == null) {
+            sample = MFALSFactorizer.sampleUsers(data, sampleSize, seed);
+        }
+
+        double error = factorizer.error(factorization, data, sample);
+        double improvement = (lastError - error) / Math.abs(lastError);
+        LOG.log(Level.INFO, String.format("iteration n = %3d e ~ %.6f improvement = %.6f", iter, error, improvement));
+        lastError = error;
+
+        // NaN in the first iteration, so it never stops there
+        return improvement < minImprovement;
+    }
+
+    /**
+     * The loss of the last iteration, NaN before the first one.
+     */
+    @Override
+    public double[] state() {
+        return new double[]{lastError};
+    }
+
+    @Override
+    public void restore(double[] state) {
+        lastError = state[0];
+    }
+}
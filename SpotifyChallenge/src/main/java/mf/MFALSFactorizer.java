@@ -9,14 +9,20 @@
 package mf;
 
 import cern.colt.function.DoubleFunction;
-import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.mf.Factorization;
 import es.uam.eps.ir.ranksys.mf.Factorizer;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
@@ -40,22 +46,145 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
 
     private final int numIter;
 
+    /**
+     * If true, new factorizations store their factors in single precision.
+     */
+    protected final boolean floatFactors;
+
+    private Checkpoints checkpoints = null;
+    private boolean resume = false;
+    private EarlyStopping<U, I> earlyStopping = null;
+    private RowScheduler scheduler = null;
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+
     /**
      * Constructor.
      *
      * @param numIter number of least-squares calculations
      */
     public MFALSFactorizer(int numIter) {
+        this(numIter, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numIter number of least-squares calculations
+     * @param floatFactors true to store the factors of new factorizations in single precision, which halves their
+     * memory; the least-squares steps still accumulate in double precision
+     */
+    public MFALSFactorizer(int numIter, boolean floatFactors) {
         this.numIter = numIter;
+        this.floatFactors = floatFactors;
+    }
+
+    /**
+     * Enables periodic checkpoints of the factors, written in the background while the next iterations run.
+     * The RR1/CG row updates do not depend on the order in which the rows are processed, so a run resumed from
+     * a checkpoint ends with exactly the same factors as an uninterrupted run. The state of the early stopping policy
+     * is saved with every checkpoint, so the resumed run also stops at the same iteration.
+     *
+     * @param directory directory of the checkpoints
+     * @param interval a checkpoint is written every interval iterations
+     * @param resume true to continue from the latest checkpoint in the directory, if any
+     */
+    public void setCheckpoints(String directory, int interval, boolean resume) {
+        this.checkpoints = new Checkpoints(directory, interval);
+        this.resume = resume;
+    }
+
+    /**
+     * Sets a policy that is checked after every iteration and can stop the factorization before numIter iterations.
+     * A run with early stopping can only be resumed from checkpoints that were written with early stopping.
+     *
+     * @param earlyStopping early stopping policy, null to always run numIter iterations
+     */
+    public void setEarlyStopping(EarlyStopping<U, I> earlyStopping) {
+        this.earlyStopping = earlyStopping;
+    }
+
+    /**
+     * Sets the scheduler that runs the row updates of every half-iteration. By default they run in a parallel
+     * stream on the common pool.
+     *
+     * @param scheduler row scheduler, null for the default parallel stream
+     */
+    public void setScheduler(RowScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Applies a row update to every row, with the scheduler if there is one or with a parallel stream otherwise.
+     *
+     * @param rows rows to be updated
+     * @param cost estimated cost of the update of every row
+     * @param action row update
+     */
+    protected void forEachRow(int[] rows, IntUnaryOperator cost, IntConsumer action) {
+        if (scheduler != null) {
+            scheduler.forEach(rows, cost, action);
+        } else {
+            IntStream.of(rows).parallel().forEach(action);
+        }
+    }
+
+    /**
+     * Adds time to a phase of the current iteration (e.g. Gram matrix, row updates). The accumulated times are
+     * logged after every iteration.
+     *
+     * @param phase name of the phase
+     * @param nanos elapsed time in nanoseconds
+     */
+    protected void addPhaseTime(String phase, long nanos) {
+        phaseTimes.merge(phase, nanos, Long::sum);
     }
 
     @Override
     public double error(Factorization<U, I> factorization, FastPreferenceData<U, I> data) {
 
-        DenseDoubleMatrix2D p = factorization.getUserMatrix();
-        DenseDoubleMatrix2D q = factorization.getItemMatrix();
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
 
-        return error(p, q, data);
+        return error(flat.getUserFactors(), flat.getItemFactors(), data);
+    }
+
+    /**
+     * Estimates the squared loss from a sample of the users.
+     *
+     * @param factorization factorization
+     * @param data preference data
+     * @param uidxs sample of the users with preferences, see {@link #sampleUsers(FastPreferenceData, int, long)}
+     * @return estimation of the squared loss
+     */
+    public double error(Factorization<U, I> factorization, FastPreferenceData<U, I> data, int[] uidxs) {
+
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+
+        return error(flat.getUserFactors(), flat.getItemFactors(), data, uidxs);
+    }
+
+    /**
+     * Uniform sample without replacement of the users with preferences.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param data preference data
+     * @param size size of the sample, all the users if it is larger than their number
+     * @param seed random seed
+     * @return sorted indices of the sampled users
+     */
+    public static <U, I> int[] sampleUsers(FastPreferenceData<U, I> data, int size, long seed) {
+        int[] uidxs = data.getUidxWithPreferences().toArray();
+        int n = Math.min(size, uidxs.length);
+        Random random = new Random(seed);
+        for (int i = 0; i < n; i++) {
+            int j = i + random.nextInt(uidxs.length - i);
+            int tmp = uidxs[i];
+            uidxs[i] = uidxs[j];
+            uidxs[j] = tmp;
+        }
+        int[] sample = Arrays.copyOf(uidxs, n);
+        Arrays.sort(sample);
+        return sample;
     }
 
     @Override
@@ -65,7 +194,21 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
         random.nextDouble();
         //DoubleFunction init = x -> sqrt(1.0 / K) * Math.random();
         DoubleFunction init = x -> sqrt(1.0 / K) * random.nextDouble();
-        Factorization<U, I> factorization = new Factorization<>(data, data, K, init);
+        // same initialization order as Factorization(uIndex, iIndex, K, init)
+        FactorMatrix p;
+        FactorMatrix q;
+        if (floatFactors) {
+            p = new FloatFactorMatrix(data.numUsers(), K).assign(init);
+            q = new FloatFactorMatrix(data.numItems(), K).assign(init);
+        } else {
+            DoubleFactorMatrix dp = new DoubleFactorMatrix(data.numUsers(), K);
+            dp.asColt().assign(init);
+            DoubleFactorMatrix dq = new DoubleFactorMatrix(data.numItems(), K);
+            dq.asColt().assign(init);
+            p = dp;
+            q = dq;
+        }
+        FlatFactorization<U, I> factorization = new FlatFactorization<>(data, data, p, q);
         factorize(factorization, data);
         return factorization;
     }
@@ -73,28 +216,191 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
     @Override
     public void factorize(Factorization<U, I> factorization, FastPreferenceData<U, I> data) {
 
-        DenseDoubleMatrix2D p = factorization.getUserMatrix();
-        DenseDoubleMatrix2D q = factorization.getItemMatrix();
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+        FactorMatrix p = flat.getUserFactors();
+        FactorMatrix q = flat.getItemFactors();
 
         IntSet uidxs = new IntOpenHashSet(data.getUidxWithPreferences().toArray());
-        IntStream.range(0, p.rows()).filter(uidx -> !uidxs.contains(uidx)).forEach(uidx -> p.viewRow(uidx).assign(0.0));
+        IntStream.range(0, p.rows()).filter(uidx -> !uidxs.contains(uidx)).forEach(uidx -> p.assignRow(uidx, 0.0));
         IntSet iidxs = new IntOpenHashSet(data.getIidxWithPreferences().toArray());
-        IntStream.range(0, q.rows()).filter(iidx -> !iidxs.contains(iidx)).forEach(iidx -> q.viewRow(iidx).assign(0.0));
+        IntStream.range(0, q.rows()).filter(iidx -> !iidxs.contains(iidx)).forEach(iidx -> q.assignRow(iidx, 0.0));
 
-        for (int t = 1; t <= numIter; t++) {
+        int t0 = 0;
+        boolean stopped = false;
+        if (checkpoints != null && resume) {
+            t0 = checkpoints.restore(flat);
+            if (t0 > 0) {
+                LOG.log(Level.INFO, String.format("resuming after iteration n = %3d", t0));
+                if (earlyStopping != null) {
+                    double[] state = checkpoints.restoredState();
+                    if (state == null) {
+                        throw new IllegalStateException("checkpoint of iteration " + t0 + " has no early stopping state");
+                    }
+                    stopped = state[0] != 0.0;
+                    earlyStopping.restore(Arrays.copyOfRange(state, 1, state.length));
+                    if (stopped) {
+                        LOG.log(Level.INFO, String.format("early stopping after iteration n = %3d", t0));
+                    }
+                }
+            }
+        }
+
+        for (int t = t0 + 1; t <= numIter && !stopped; t++) {
             long time0 = System.nanoTime();
+            long gc0 = gcTime();
 
             set_minQ(q, p, data);
             set_minP(p, q, data);
 
             int iter = t;
             long time1 = System.nanoTime() - time0;
+            long gc1 = gcTime() - gc0;
+
+            LOG.log(Level.INFO, String.format("iteration n = %3d t = %.2fs gc = %.2fs", iter, time1 / 1_000_000_000.0, gc1 / 1_000.0));
+            logPhaseTimes(String.format("iteration n = %3d", iter));
+            if (scheduler != null) {
+                LOG.log(Level.INFO, String.format("iteration n = %3d %s", iter, scheduler.report()));
+            }
+            LOG.log(Level.FINE, () -> String.format("iteration n = %3d e = %.6f", iter, error(p, q, data)));
+
+            double[] state = null;
+            if (earlyStopping != null) {
+                stopped = earlyStopping.stop(iter, flat, data);
+                if (stopped) {
+                    LOG.log(Level.INFO, String.format("early stopping after iteration n = %3d", iter));
+                }
+                // whether it stopped, followed by the state of the policy
+                double[] policyState = earlyStopping.state();
+                state = new double[policyState.length + 1];
+                state[0] = stopped ? 1.0 : 0.0;
+                System.arraycopy(policyState, 0, state, 1, policyState.length);
+            }
+            if (checkpoints != null) {
+                checkpoints.submit(iter, flat, state);
+            }
+        }
+        if (checkpoints != null) {
+            checkpoints.await();
+        }
+
+        if (flat != factorization) {
+            ((DoubleFactorMatrix) p).copyTo(factorization.getUserMatrix());
+            ((DoubleFactorMatrix) q).copyTo(factorization.getItemMatrix());
+        }
+    }
 
-            LOG.log(Level.INFO, String.format("iteration n = %3d t = %.2fs", iter, time1 / 1_000_000_000.0));
-            LOG.log(Level.FINE, () -> String.format("iteration n = %3d e = %.6f", iter, error(factorization, data)));
+    /**
+     * Incremental warm-start update of a trained factorization after new preferences arrive. The factors of known
+     * users and items are copied from the previous factorization and new users and items get the seeded random
+     * initialization of {@link #factorize(int, FastPreferenceData)}. Then numSweeps ALS iterations update only the
+     * rows whose preferences changed: new users, users whose number of preferences differs from previousData and the
+     * items of those users. The Gram matrices of every half-iteration still use all the rows.
+     * <p>
+     * The rest of the rows keep their previous values. They can be refreshed later, e.g. off the publishing path,
+     * with {@link #factorize(Factorization, FastPreferenceData)}, which warm-starts from the updated factors.
+     *
+     * @param previous previous factorization
+     * @param previousData preferences used to train the previous factorization, null to consider that only new
+     * users have changed
+     * @param data all the preferences, whose user and item indexes extend the previous ones
+     * @param numSweeps number of iterations over the changed rows
+     * @return updated factorization, indexed as data
+     */
+    public FlatFactorization<U, I> update(Factorization<U, I> previous, FastPreferenceData<U, I> previousData, FastPreferenceData<U, I> data, int numSweeps) {
+        long time0 = System.nanoTime();
+        FlatFactorization<U, I> old = FlatFactorization.of(previous);
+        final int K = old.getK();
+
+        Random random = new Random(1987);
+        random.nextDouble();
+        FactorMatrix p = floatFactors ? new FloatFactorMatrix(data.numUsers(), K) : new DoubleFactorMatrix(data.numUsers(), K);
+        FactorMatrix q = floatFactors ? new FloatFactorMatrix(data.numItems(), K) : new DoubleFactorMatrix(data.numItems(), K);
+        double[] row = new double[K];
+
+        IntSet changedUsers = new IntOpenHashSet();
+        for (int uidx = 0; uidx < p.rows(); uidx++) {
+            U u = data.uidx2user(uidx);
+            int oldUidx = old.user2uidx(u);
+            if (oldUidx >= 0) {
+                old.getUserFactors().getRow(oldUidx, row, 0);
+                if (previousData != null && previousData.numItems(u) != data.numItems(uidx)) {
+                    changedUsers.add(uidx);
+                }
+            } else {
+                for (int k = 0; k < K; k++) {
+                    row[k] = sqrt(1.0 / K) * random.nextDouble();
+                }
+                changedUsers.add(uidx);
+            }
+            p.setRow(uidx, row, 0);
+        }
+        IntSet changedItems = new IntOpenHashSet();
+        changedUsers.forEach(uidx -> data.getUidxPreferences(uidx).forEach(iv -> changedItems.add(iv.v1)));
+        for (int iidx = 0; iidx < q.rows(); iidx++) {
+            int oldIidx = old.item2iidx(data.iidx2item(iidx));
+            if (oldIidx >= 0) {
+                old.getItemFactors().getRow(oldIidx, row, 0);
+            } else {
+                for (int k = 0; k < K; k++) {
+                    row[k] = sqrt(1.0 / K) * random.nextDouble();
+                }
+                changedItems.add(iidx);
+            }
+            q.setRow(iidx, row, 0);
+        }
+
+        changedUsers.forEach(uidx -> {
+            if (data.numItems(uidx) == 0) {
+                p.assignRow(uidx, 0.0);
+            }
+        });
+        changedItems.forEach(iidx -> {
+            if (data.numUsers(iidx) == 0) {
+                q.assignRow(iidx, 0.0);
+            }
+        });
+
+        int[] uidxs = changedUsers.toIntArray();
+        int[] iidxs = changedItems.toIntArray();
+        Arrays.sort(uidxs);
+        Arrays.sort(iidxs);
+        for (int t = 1; t <= numSweeps; t++) {
+            set_minQ(q, p, data, iidxs);
+            set_minP(p, q, data, uidxs);
+        }
+
+        LOG.log(Level.INFO, String.format("update users = %d items = %d sweeps = %d t = %.2fs", uidxs.length, iidxs.length, numSweeps, (System.nanoTime() - time0) / 1_000_000_000.0));
+        logPhaseTimes("update");
+
+        return new FlatFactorization<>(data, data, p, q);
+    }
+
+    /**
+     * Logs the phase times accumulated since the last call and clears them.
+     *
+     * @param prefix start of the log line
+     */
+    private void logPhaseTimes(String prefix) {
+        if (!phaseTimes.isEmpty()) {
+            StringBuilder phases = new StringBuilder();
+            phaseTimes.forEach((phase, time) -> phases.append(String.format(" %s = %.2fs", phase, time / 1_000_000_000.0)));
+            phaseTimes.clear();
+            LOG.log(Level.INFO, prefix + phases);
         }
     }
 
+    /**
+     * Accumulated collection time of all garbage collectors of the JVM.
+     *
+     * @return collection time in milliseconds
+     */
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                .filter(time -> time > 0)
+                .sum();
+    }
+
     /**
      * Squared loss of two matrices.
      *
@@ -103,7 +409,18 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
      * @param data preference data
      * @return squared loss
      */
-    protected abstract double error(DenseDoubleMatrix2D p, DenseDoubleMatrix2D q, FastPreferenceData<U, I> data);
+    protected abstract double error(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data);
+
+    /**
+     * Squared loss of two matrices estimated from a sample of the users.
+     *
+     * @param p user matrix
+     * @param q item matrix
+     * @param data preference data
+     * @param uidxs sample of the users with preferences
+     * @return estimation of the squared loss
+     */
+    protected abstract double error(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs);
 
     /**
      * User matrix least-squares step.
@@ -112,7 +429,7 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
      * @param q item matrix
      * @param data preference data
      */
-    protected abstract void set_minP(DenseDoubleMatrix2D p, DenseDoubleMatrix2D q, FastPreferenceData<U, I> data);
+    protected abstract void set_minP(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data);
 
     /**
      * Item matrix least-squares step.
@@ -121,5 +438,25 @@ public abstract class MFALSFactorizer<U, I> extends Factorizer<U, I> {
      * @param p user matrix
      * @param data preference data
      */
-    protected abstract void set_minQ(DenseDoubleMatrix2D q, DenseDoubleMatrix2D p, FastPreferenceData<U, I> data);
+    protected abstract void set_minQ(FactorMatrix q, FactorMatrix p, FastPreferenceData<U, I> data);
+
+    /**
+     * User matrix least-squares step restricted to some rows.
+     *
+     * @param p user matrix
+     * @param q item matrix
+     * @param data preference data
+     * @param uidxs users whose rows are updated
+     */
+    protected abstract void set_minP(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs);
+
+    /**
+     * Item matrix least-squares step restricted to some rows.
+     *
+     * @param q item matrix
+     * @param p user matrix
+     * @param data preference data
+     * @param iidxs items whose rows are updated
+     */
+    protected abstract void set_minQ(FactorMatrix q, FactorMatrix p, FastPreferenceData<U, I> data, int[] iidxs);
 }
@@ -0,0 +1,176 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import es.uam.eps.ir.ranksys.fast.preference.TransposedPreferenceData;
+
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Conjugate-gradient variant of {@link MFFactorizer}.
+ *
+ * Instead of the eigendecomposition of the Gram matrix and the RR1 coordinate sweep, every user/item row is updated by
+ * a few warm-started conjugate gradient steps on the same normal equations that RR1 approximates:
+ * (q^T q + 2 lambda I + sum_i (c_i - 1) q_i q_i^T) w = sum_i c_i r_i q_i. The Gram matrix is computed once per
+ * half-iteration and shared by all rows, so each row update costs O(N K + K^2 numSteps).
+ *
+ * G. Takács, I. Pilászy and D. Tikk. Applications of the Conjugate Gradient Method for Implicit Feedback
+ * Collaborative Filtering. RecSys 2011.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class MFCGFactorizer<U, I> extends MFFactorizer<U, I> {
+
+    private final int numSteps;
+
+    /**
+     * Constructor. Same regularization factor for user and item matrices.
+     *
+     * @param lambda regularization factor
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param numSteps number of conjugate gradient steps per row and iteration
+     */
+    public MFCGFactorizer(double lambda, DoubleUnaryOperator confidence, int numIter, int numSteps) {
+        this(lambda, lambda, confidence, numIter, numSteps);
+    }
+
+    /**
+     * Constructor. Different regularization factors for user and item matrices.
+     *
+     * @param lambdaP regularization factor for user matrix
+     * @param lambdaQ regularization factor for item matrix
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param numSteps number of conjugate gradient steps per row and iteration
+     */
+    public MFCGFactorizer(double lambdaP, double lambdaQ, DoubleUnaryOperator confidence, int numIter, int numSteps) {
+        super(lambdaP, lambdaQ, confidence, numIter);
+        this.numSteps = numSteps;
+    }
+
+    @Override
+    public void set_minP(final FactorMatrix p, final FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs) {
+        set_min(p, q, confidence, lambdaP, numSteps, data, uidxs);
+    }
+
+    @Override
+    public void set_minQ(final FactorMatrix q, final FactorMatrix p, FastPreferenceData<U, I> data, int[] iidxs) {
+        set_min(q, p, confidence, lambdaQ, numSteps, new TransposedPreferenceData<>(data), iidxs);
+    }
+
+    private <V, J> void set_min(final FactorMatrix p, final FactorMatrix q, DoubleUnaryOperator confidence, double lambda, int numSteps, FastPreferenceData<V, J> data, int[] uidxs) {
+        final int K = p.columns();
+
+        long time0 = System.nanoTime();
+        double[] A1 = getGram(q, lambda);
+        double[][] a = new double[K][K];
+        for (int k = 0; k < K; k++) {
+            System.arraycopy(A1, k * K, a[k], 0, K);
+            a[k][k] += lambda;
+        }
+        long time1 = System.nanoTime();
+
+        int[] rows = IntStream.of(uidxs).filter(uidx -> data.numItems(uidx) > 0).toArray();
+        forEachRow(rows, uidx -> K + data.numItems(uidx), uidx -> {
+            doCG(numSteps, p, uidx, a, q, data.numItems(uidx), data.getUidxPreferences(uidx), confidence);
+        });
+        long time2 = System.nanoTime();
+
+        addPhaseTime("gram", time1 - time0);
+        addPhaseTime("rows", time2 - time1);
+    }
+
+    private static void doCG(int numSteps, FactorMatrix p, int uidx, double[][] a, FactorMatrix q, int N, Stream<? extends IdxPref> prefs, DoubleUnaryOperator confidence) {
+        int K = a.length;
+
+        double[][] x = new double[N][K];
+        double[] c = new double[N];
+        double[] w = new double[K];
+        double[] r = new double[K];
+        int[] j = {0};
+        prefs.forEach(iv -> {
+            q.getRow(iv.v1, x[j[0]], 0);
+            double Cui = confidence.applyAsDouble(iv.v2);
+            c[j[0]] = Cui - 1;
+            q.axpy(iv.v1, Cui * iv.v2, r);
+            j[0]++;
+        });
+        p.getRow(uidx, w, 0);
+
+        double[] d = new double[K];
+        double[] ad = new double[K];
+
+        // r = b - A w, warm-started from the current row
+        multiply(a, x, c, w, ad);
+        double rr = 0.0;
+        for (int k = 0; k < K; k++) {
+            r[k] -= ad[k];
+            d[k] = r[k];
+            rr += r[k] * r[k];
+        }
+
+        for (int l = 0; l < numSteps && rr > 1e-20; l++) {
+            multiply(a, x, c, d, ad);
+            double dad = 0.0;
+            for (int k = 0; k < K; k++) {
+                dad += d[k] * ad[k];
+            }
+            double alpha = rr / dad;
+            double rrNew = 0.0;
+            for (int k = 0; k < K; k++) {
+                w[k] += alpha * d[k];
+                r[k] -= alpha * ad[k];
+                rrNew += r[k] * r[k];
+            }
+            double beta = rrNew / rr;
+            for (int k = 0; k < K; k++) {
+                d[k] = r[k] + beta * d[k];
+            }
+            rr = rrNew;
+        }
+
+        p.setRow(uidx, w, 0);
+    }
+
+    private static void multiply(double[][] a, double[][] x, double[] c, double[] v, double[] out) {
+        int K = v.length;
+
+        for (int k1 = 0; k1 < K; k1++) {
+            double[] ak = a[k1];
+            double sum = 0.0;
+            for (int k2 = 0; k2 < K; k2++) {
+                sum += ak[k2] * v[k2];
+            }
+            out[k1] = sum;
+        }
+        for (int i = 0; i < x.length; i++) {
+            double[] xi = x[i];
+            double xv = 0.0;
+            for (int k = 0; k < K; k++) {
+                xv += xi[k] * v[k];
+            }
+            xv *= c[i];
+            for (int k = 0; k < K; k++) {
+                out[k] += xv * xi[k];
+            }
+        }
+    }
+}
@@ -15,8 +15,14 @@ import cern.colt.matrix.linalg.EigenvalueDecomposition;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
 import es.uam.eps.ir.ranksys.fast.preference.TransposedPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.DoubleUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.lang.Math.sqrt;
@@ -39,9 +45,29 @@ import static java.lang.Math.sqrt;
  */
 public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
 
-    private final double lambdaP;
-    private final double lambdaQ;
-    private final DoubleUnaryOperator confidence;
+    private static final Logger LOG = Logger.getLogger(es.uam.eps.ir.ranksys.mf.als.ALSFactorizer.class.getName());
+
+    /**
+     * Regularization factor for the user matrix.
+     */
+    protected final double lambdaP;
+
+    /**
+     * Regularization factor for the item matrix.
+     */
+    protected final double lambdaQ;
+
+    /**
+     * Confidence function.
+     */
+    protected final DoubleUnaryOperator confidence;
+
+    /**
+     * If true, RR1 reuses per-thread scratch buffers instead of allocating them for every row.
+     */
+    protected final boolean workspace;
+
+    private final ThreadLocal<RR1Workspace> workspaces = ThreadLocal.withInitial(RR1Workspace::new);
 
     /**
      * Constructor. Same regularization factor for user and item matrices.
@@ -54,6 +80,31 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
         this(lambda, lambda, confidence, numIter);
     }
 
+    /**
+     * Constructor. Same regularization factor for user and item matrices.
+     *
+     * @param lambda regularization factor
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param workspace true to reuse per-thread scratch buffers in RR1, false to allocate them for every row
+     */
+    public MFFactorizer(double lambda, DoubleUnaryOperator confidence, int numIter, boolean workspace) {
+        this(lambda, lambda, confidence, numIter, workspace);
+    }
+
+    /**
+     * Constructor. Same regularization factor for user and item matrices.
+     *
+     * @param lambda regularization factor
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param workspace true to reuse per-thread scratch buffers in RR1, false to allocate them for every row
+     * @param floatFactors true to store the factors in single precision
+     */
+    public MFFactorizer(double lambda, DoubleUnaryOperator confidence, int numIter, boolean workspace, boolean floatFactors) {
+        this(lambda, lambda, confidence, numIter, workspace, floatFactors);
+    }
+
     /**
      * Constructor. Different regularization factors for user and item matrices.
      *
@@ -63,59 +114,184 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
      * @param numIter number of iterations
      */
     public MFFactorizer(double lambdaP, double lambdaQ, DoubleUnaryOperator confidence, int numIter) {
-        super(numIter);
+        this(lambdaP, lambdaQ, confidence, numIter, false);
+    }
+
+    /**
+     * Constructor. Different regularization factors for user and item matrices.
+     *
+     * @param lambdaP regularization factor for user matrix
+     * @param lambdaQ regularization factor for item matrix
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param workspace true to reuse per-thread scratch buffers in RR1, false to allocate them for every row
+     */
+    public MFFactorizer(double lambdaP, double lambdaQ, DoubleUnaryOperator confidence, int numIter, boolean workspace) {
+        this(lambdaP, lambdaQ, confidence, numIter, workspace, false);
+    }
+
+    /**
+     * Constructor. Different regularization factors for user and item matrices.
+     *
+     * @param lambdaP regularization factor for user matrix
+     * @param lambdaQ regularization factor for item matrix
+     * @param confidence confidence function
+     * @param numIter number of iterations
+     * @param workspace true to reuse per-thread scratch buffers in RR1, false to allocate them for every row
+     * @param floatFactors true to store the factors in single precision
+     */
+    public MFFactorizer(double lambdaP, double lambdaQ, DoubleUnaryOperator confidence, int numIter, boolean workspace, boolean floatFactors) {
+        super(numIter, floatFactors);
         this.lambdaP = lambdaP;
         this.lambdaQ = lambdaQ;
         this.confidence = confidence;
+        this.workspace = workspace;
     }
 
     @Override
-    public double error(DenseDoubleMatrix2D p, DenseDoubleMatrix2D q, FastPreferenceData<U, I> data) {
+    public double error(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data) {
+        return error(p, q, data, data.getUidxWithPreferences().toArray());
+    }
+
+    @Override
+    public double error(FactorMatrix p, FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs) {
         // TODO: add regularization, unify with HKVFactorizer's error
-        
-        return data.getUidxWithPreferences().parallel().mapToDouble(uidx -> {
-            DoubleMatrix1D pu = p.viewRow(uidx);
-            DoubleMatrix1D su = q.zMult(pu, null);
-            
+
+        // the squared scores of all the items of a user are p_u^T (Q^T Q) p_u, O(K^2) instead of O(numItems K)
+        final int K = p.columns();
+        final double[] gram = q.gram();
+        final double c0 = confidence.applyAsDouble(0);
+        final Kernels kernels = Kernels.get();
+
+        double sum = IntStream.of(uidxs).parallel().mapToDouble(uidx -> {
+            double[] pu = new double[K];
+            p.getRow(uidx, pu, 0);
+
             double err1 = data.getUidxPreferences(uidx).mapToDouble(iv -> {
                 double rui = iv.v2;
-                double sui = su.getQuick(iv.v1);
+                double sui = q.dot(iv.v1, pu);
                 double cui = confidence.applyAsDouble(rui);
-                return cui * (rui - sui) * (rui - sui) - confidence.applyAsDouble(0) * sui * sui;
+                return cui * (rui - sui) * (rui - sui) - c0 * sui * sui;
             }).sum();
-            
-            double err2 = confidence.applyAsDouble(0) * su.assign(x -> x * x).zSum();
-            
+
+            double err2 = 0.0;
+            for (int k1 = 0; k1 < K; k1++) {
+                err2 += pu[k1] * kernels.dot(gram, k1 * K, pu, 0, K);
+            }
+            err2 *= c0;
+
             return (err1 + err2) / data.numItems();
-        }).sum() / data.numUsers();
+        }).sum();
+
+        // users outside the sample are accounted for by rescaling
+        return sum * data.numUsersWithPreferences() / uidxs.length / data.numUsers();
+    }
+
+    @Override
+    public void set_minP(final FactorMatrix p, final FactorMatrix q, FastPreferenceData<U, I> data) {
+        set_minP(p, q, data, data.getUidxWithPreferences().toArray());
+    }
 
+    @Override
+    public void set_minQ(final FactorMatrix q, final FactorMatrix p, FastPreferenceData<U, I> data) {
+        set_minQ(q, p, data, data.getIidxWithPreferences().toArray());
     }
 
     @Override
-    public void set_minP(final DenseDoubleMatrix2D p, final DenseDoubleMatrix2D q, FastPreferenceData<U, I> data) {
-        set_min(p, q, confidence, lambdaP, data);
+    public void set_minP(final FactorMatrix p, final FactorMatrix q, FastPreferenceData<U, I> data, int[] uidxs) {
+        if (workspace) {
+            set_min(p, q, confidence, lambdaP, data, uidxs, workspaces);
+        } else {
+            set_min(p, q, confidence, lambdaP, data, uidxs);
+        }
     }
 
     @Override
-    public void set_minQ(final DenseDoubleMatrix2D q, final DenseDoubleMatrix2D p, FastPreferenceData<U, I> data) {
-        set_min(q, p, confidence, lambdaQ, new TransposedPreferenceData<>(data));
+    public void set_minQ(final FactorMatrix q, final FactorMatrix p, FastPreferenceData<U, I> data, int[] iidxs) {
+        if (workspace) {
+            set_min(q, p, confidence, lambdaQ, new TransposedPreferenceData<>(data), iidxs, workspaces);
+        } else {
+            set_min(q, p, confidence, lambdaQ, new TransposedPreferenceData<>(data), iidxs);
+        }
     }
 
-    private static <U, I> void set_min(final DenseDoubleMatrix2D p, final DenseDoubleMatrix2D q, DoubleUnaryOperator confidence, double lambda, FastPreferenceData<U, I> data) {
-        DoubleMatrix2D gt = getGt(p, q, lambda);
+    private <V, J> void set_min(final FactorMatrix p, final FactorMatrix q, DoubleUnaryOperator confidence, double lambda, FastPreferenceData<V, J> data, int[] uidxs) {
+        final int K = p.columns();
+        long time0 = System.nanoTime();
+        double[] gram = getGram(q, lambda);
+        long time1 = System.nanoTime();
+        DoubleMatrix2D gt = getGt(gram, K);
+        long time2 = System.nanoTime();
 
-        data.getUidxWithPreferences().parallel().forEach(uidx -> {
-            prepareRR1(1, p.viewRow(uidx), gt, q, data.numItems(uidx), data.getUidxPreferences(uidx), confidence, lambda);
+        int[] rows = IntStream.of(uidxs).filter(uidx -> data.numItems(uidx) > 0).toArray();
+        forEachRow(rows, uidx -> K + data.numItems(uidx), uidx -> {
+            prepareRR1(1, p, uidx, gt, q, data.numItems(uidx), data.getUidxPreferences(uidx), confidence, lambda);
         });
+        long time3 = System.nanoTime();
+
+        addPhaseTime("gram", time1 - time0);
+        addPhaseTime("eig", time2 - time1);
+        addPhaseTime("rows", time3 - time2);
     }
 
-    private static DoubleMatrix2D getGt(final DenseDoubleMatrix2D p, final DenseDoubleMatrix2D q, double lambda) {
+    private <V, J> void set_min(final FactorMatrix p, final FactorMatrix q, DoubleUnaryOperator confidence, double lambda, FastPreferenceData<V, J> data, int[] uidxs, ThreadLocal<RR1Workspace> workspaces) {
         final int K = p.columns();
+        long time0 = System.nanoTime();
+        double[] gram = getGram(q, lambda);
+        long time1 = System.nanoTime();
+        double[] gtRows = getGtRows(gram, K);
+        long time2 = System.nanoTime();
+        int maxN = IntStream.of(uidxs).map(data::numItems).max().orElse(0);
+
+        int[] rows = IntStream.of(uidxs).filter(uidx -> data.numItems(uidx) > 0).toArray();
+        forEachRow(rows, uidx -> K + data.numItems(uidx), uidx -> {
+            RR1Workspace ws = workspaces.get();
+            ws.ensureCapacity(K, maxN);
+            prepareRR1(1, p, uidx, gtRows, q, data.getUidxPreferences(uidx), confidence, lambda, ws);
+        });
+        long time3 = System.nanoTime();
+
+        addPhaseTime("gram", time1 - time0);
+        addPhaseTime("eig", time2 - time1);
+        addPhaseTime("rows", time3 - time2);
+    }
+
+    /**
+     * Columns of gt, which are the first K rows of every RR1 problem, stored contiguously.
+     *
+     * @param q factor matrix
+     * @param lambda regularization factor
+     * @return K x K array with the columns of gt as rows
+     */
+    protected static double[] getGtRows(final FactorMatrix q, double lambda) {
+        return getGtRows(getGram(q, lambda), q.columns());
+    }
+
+    /**
+     * Columns of gt, which are the first K rows of every RR1 problem, stored contiguously.
+     *
+     * @param gram regularized Gram matrix, see {@link #getGram(FactorMatrix, double)}
+     * @param K number of factors
+     * @return K x K array with the columns of gt as rows
+     */
+    protected static double[] getGtRows(double[] gram, int K) {
+        DoubleMatrix2D gt = getGt(gram, K);
+
+        double[] gtRows = new double[K * K];
+        for (int k = 0; k < K; k++) {
+            for (int k2 = 0; k2 < K; k2++) {
+                gtRows[k * K + k2] = gt.getQuick(k2, k);
+            }
+        }
+        return gtRows;
+    }
 
+    private static DoubleMatrix2D getGt(double[] gram, int K) {
         DenseDoubleMatrix2D A1 = new DenseDoubleMatrix2D(K, K);
-        q.zMult(q, A1, 1.0, 0.0, true, false);
         for (int k = 0; k < K; k++) {
-            A1.setQuick(k, k, lambda + A1.getQuick(k, k));
+            for (int k2 = 0; k2 < K; k2++) {
+                A1.setQuick(k, k2, gram[k * K + k2]);
+            }
         }
 
         EigenvalueDecomposition eig = new EigenvalueDecomposition(A1);
@@ -129,8 +305,27 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
         return gt;
     }
 
-    private static <O> void prepareRR1(int L, DoubleMatrix1D w, DoubleMatrix2D gt, DoubleMatrix2D q, int N, Stream<? extends IdxPref> prefs, DoubleUnaryOperator confidence, double lambda) {
-        int K = (int) w.size();
+    /**
+     * Regularized Gram matrix of a factor matrix, that is, q^T q + lambda I. It is computed in parallel, see
+     * {@link FactorMatrix#gram()}.
+     *
+     * @param q factor matrix
+     * @param lambda regularization factor added to the diagonal
+     * @return K x K regularized Gram matrix, stored row-major
+     */
+    protected static double[] getGram(final FactorMatrix q, double lambda) {
+        final int K = q.columns();
+
+        double[] A1 = q.gram();
+        for (int k = 0; k < K; k++) {
+            A1[k * K + k] += lambda;
+        }
+
+        return A1;
+    }
+
+    private static void prepareRR1(int L, FactorMatrix p, int uidx, DoubleMatrix2D gt, FactorMatrix q, int N, Stream<? extends IdxPref> prefs, DoubleUnaryOperator confidence, double lambda) {
+        int K = p.columns();
 
         double[][] x = new double[K + N][K];
         double[] y = new double[K + N];
@@ -142,17 +337,112 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
         }
         int[] j = {K};
         prefs.forEach(iv -> {
-            q.viewRow(iv.v1).toArray(x[j[0]]);
+            q.getRow(iv.v1, x[j[0]], 0);
             double Cui = confidence.applyAsDouble(iv.v2);
             y[j[0]] = (Cui * iv.v2) / (Cui - 1);
             c[j[0]] = Cui - 1;
             j[0]++;
         });
         
+        double[] w = new double[K];
+        p.getRow(uidx, w, 0);
         doRR1(L, w, x, y, c, lambda);
+        p.setRow(uidx, w, 0);
+    }
+
+    private static void prepareRR1(int L, FactorMatrix p, int uidx, double[] gtRows, FactorMatrix q, Stream<? extends IdxPref> prefs, DoubleUnaryOperator confidence, double lambda, RR1Workspace ws) {
+        int K = p.columns();
+        int S = ws.stride;
+        double[] x = ws.x;
+        double[] y = ws.y;
+        double[] c = ws.c;
+        double[] row = ws.row;
+
+        for (int k = 0; k < K; k++) {
+            for (int i = 0; i < K; i++) {
+                x[k * S + i] = gtRows[i * K + k];
+            }
+            y[k] = 0.0;
+            c[k] = 1.0;
+        }
+        int[] j = {K};
+        prefs.forEach(iv -> {
+            q.getRow(iv.v1, row, 0);
+            for (int k = 0; k < K; k++) {
+                x[k * S + j[0]] = row[k];
+            }
+            double Cui = confidence.applyAsDouble(iv.v2);
+            y[j[0]] = (Cui * iv.v2) / (Cui - 1);
+            c[j[0]] = Cui - 1;
+            j[0]++;
+        });
+
+        double[] w = ws.w;
+        p.getRow(uidx, w, 0);
+        doRR1(L, w, x, S, y, c, ws.e, j[0], K, lambda);
+        p.setRow(uidx, w, 0);
+    }
+
+    /**
+     * L sweeps of RR1 over the (K+N) x K matrix x, stored column-major with the given stride so that the loops over
+     * its rows are contiguous and run on the {@link Kernels}. With {@link ScalarKernels} the terms are added in the
+     * same order as the row-major loops of the allocating path.
+     */
+    static void doRR1(int L, double[] w, double[] x, int S, double[] y, double[] c, double[] e, int N, int K, double lambda) {
+        final Kernels kernels = Kernels.get();
+
+        Arrays.fill(e, 0, N, 0.0);
+        for (int k = 0; k < K; k++) {
+            kernels.axpy(w[k], x, k * S, e, 0, N);
+        }
+        for (int i = 0; i < N; i++) {
+            e[i] = y[i] - e[i];
+        }
+
+        for (int l = 0; l < L; l++) {
+            for (int k = 0; k < K; k++) {
+                int xk = k * S;
+                kernels.axpy(w[k], x, xk, e, 0, N);
+                double a = kernels.dot(c, x, xk, x, xk, N);
+                double d = kernels.dot(c, x, xk, e, 0, N);
+                w[k] = d / (lambda + a);
+                kernels.axpy(-w[k], x, xk, e, 0, N);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #doRR1(int, double[], double[], int, double[], double[], double[], int, int, double)} when the
+     * K rows of the Gram part have target 0 and confidence 1 and all the other rows have the same target y and
+     * confidence c, as in binary data. It gives the same result without reading target and confidence arrays.
+     */
+    static void doRR1(int L, double[] w, double[] x, int S, double y, double c, double[] e, int N, int K, double lambda) {
+        final Kernels kernels = Kernels.get();
+
+        Arrays.fill(e, 0, N, 0.0);
+        for (int k = 0; k < K; k++) {
+            kernels.axpy(w[k], x, k * S, e, 0, N);
+        }
+        for (int i = 0; i < K; i++) {
+            e[i] = 0.0 - e[i];
+        }
+        for (int i = K; i < N; i++) {
+            e[i] = y - e[i];
+        }
+
+        for (int l = 0; l < L; l++) {
+            for (int k = 0; k < K; k++) {
+                int xk = k * S;
+                kernels.axpy(w[k], x, xk, e, 0, N);
+                double a = kernels.dot(K, c, x, xk, x, xk, N);
+                double d = kernels.dot(K, c, x, xk, e, 0, N);
+                w[k] = d / (lambda + a);
+                kernels.axpy(-w[k], x, xk, e, 0, N);
+            }
+        }
     }
 
-    private static void doRR1(int L, DoubleMatrix1D w, double[][] x, double[] y, double[] c, double lambda) {
+    private static void doRR1(int L, double[] w, double[][] x, double[] y, double[] c, double lambda) {
         int N = x.length;
         int K = x[0].length;
         
@@ -160,7 +450,7 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
         for (int i = 0; i < N; i++) {
             double pred = 0.0;
             for (int k = 0; k < K; k++) {
-                pred += w.getQuick(k) * x[i][k];
+                pred += w[k] * x[i][k];
             }
             e[i] = y[i] - pred;
         }
@@ -168,7 +458,7 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
         for (int l = 0; l < L; l++) {
             for (int k = 0; k < K; k++) {
                 for (int i = 0; i < N; i++) {
-                    e[i] += w.getQuick(k) * x[i][k];
+                    e[i] += w[k] * x[i][k];
                 }
                 double a = 0.0;
                 double d = 0.0;
@@ -176,12 +466,124 @@ public class MFFactorizer<U, I> extends MFALSFactorizer<U, I> {
                     a += c[i] * x[i][k] * x[i][k];
                     d += c[i] * x[i][k] * e[i];
                 }
-                w.setQuick(k, d / (lambda + a));
+                w[k] = d / (lambda + a);
                 for (int i = 0; i < N; i++) {
-                    e[i] -= w.getQuick(k) * x[i][k];
+                    e[i] -= w[k] * x[i][k];
                 }
             }
         }
 
     }
+
+    /**
+     * Creates a fold-in solver for new users of a trained factorization. The eigendecomposition of the Gram matrix of
+     * the item factors is computed once, so every new user only costs numSweeps RR1 sweeps over its preferences.
+     *
+     * @param factorization trained factorization
+     * @param numSweeps number of RR1 sweeps per new user, starting from a zero vector
+     * @return fold-in solver
+     */
+    public FoldIn<U, I> foldIn(Factorization<U, I> factorization, int numSweeps) {
+        return new FoldIn<>(FlatFactorization.of(factorization).getItemFactors(), confidence, lambdaP, numSweeps);
+    }
+
+    /**
+     * Computes the factors of users that were not in the training data, keeping the item factors fixed. It solves
+     * the same RR1 problems as the user half-iteration of {@link MFFactorizer}, with several sweeps since there is no
+     * previous user vector to warm-start from.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     */
+    public static class FoldIn<U, I> {
+
+        private final FactorMatrix q;
+        private final DoubleUnaryOperator confidence;
+        private final double lambda;
+        private final int numSweeps;
+        private final double[] gtRows;
+        private final ThreadLocal<RR1Workspace> workspaces = ThreadLocal.withInitial(RR1Workspace::new);
+
+        private FoldIn(FactorMatrix q, DoubleUnaryOperator confidence, double lambda, int numSweeps) {
+            this.q = q;
+            this.confidence = confidence;
+            this.lambda = lambda;
+            this.numSweeps = numSweeps;
+
+            long time0 = System.nanoTime();
+            double[] gram = getGram(q, lambda);
+            long time1 = System.nanoTime();
+            this.gtRows = getGtRows(gram, q.columns());
+            long time2 = System.nanoTime();
+            LOG.log(Level.INFO, String.format("fold-in gram = %.2fs eig = %.2fs", (time1 - time0) / 1_000_000_000.0, (time2 - time1) / 1_000_000_000.0));
+        }
+
+        /**
+         * Computes the factors of a single user.
+         *
+         * @param prefs preferences of the user, with the item indices of the trained factorization
+         * @return user vector
+         */
+        public double[] foldIn(List<? extends IdxPref> prefs) {
+            final int K = q.columns();
+            RR1Workspace ws = workspaces.get();
+            ws.ensureCapacity(K, prefs.size());
+            FactorMatrix p = new DoubleFactorMatrix(1, K);
+            prepareRR1(numSweeps, p, 0, gtRows, q, prefs.stream(), confidence, lambda, ws);
+
+            double[] pu = new double[K];
+            p.getRow(0, pu, 0);
+            return pu;
+        }
+
+        /**
+         * Computes the factors of a batch of users in parallel. The data must share the item index of the trained
+         * factorization, its user index can be a new one.
+         *
+         * @param data preferences of the new users
+         * @return factorization with the new users and the trained item factors
+         */
+        public FlatFactorization<U, I> foldIn(FastPreferenceData<U, I> data) {
+            final int K = q.columns();
+            boolean isFloat = q instanceof FloatFactorMatrix || (q instanceof MappedFactorMatrix && ((MappedFactorMatrix) q).isFloat());
+            FactorMatrix p = isFloat ? new FloatFactorMatrix(data.numUsers(), K) : new DoubleFactorMatrix(data.numUsers(), K);
+            int maxN = data.getUidxWithPreferences().map(data::numItems).max().orElse(0);
+
+            data.getUidxWithPreferences().parallel().forEach(uidx -> {
+                RR1Workspace ws = workspaces.get();
+                ws.ensureCapacity(K, maxN);
+                prepareRR1(numSweeps, p, uidx, gtRows, q, data.getUidxPreferences(uidx), confidence, lambda, ws);
+            });
+
+            return new FlatFactorization<>(data, data, p, q);
+        }
+    }
+
+    /**
+     * Per-thread scratch buffers of RR1, sized to the longest profile of the current half-iteration. The columns of
+     * the (K+N) x K matrix are stored contiguously in a single array, each one taking stride values.
+     */
+    private static final class RR1Workspace {
+
+        private int stride = 0;
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+        private double[] c = new double[0];
+        private double[] e = new double[0];
+        private double[] w = new double[0];
+        private double[] row = new double[0];
+
+        private void ensureCapacity(int K, int maxN) {
+            int n = K + maxN;
+            if (y.length < n || w.length != K) {
+                stride = n;
+                x = new double[n * K];
+                y = new double[n];
+                c = new double[n];
+                e = new double[n];
+                w = new double[K];
+                row = new double[K];
+            }
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only factor matrix memory-mapped from a {@link FactorizationSnapshot} file. Rows are stored row-major in double
+ * or single precision. A mapping cannot exceed 2 GB, so the rows are split in several mapped chunks. Nothing is
+ * copied onto the heap: pages are loaded by the operating system when the rows are first read.
+ * <p>
+ * Setters throw a ReadOnlyBufferException, use {@link #copy()} to obtain a heap matrix that can be trained further.
+ */
+public class MappedFactorMatrix extends FactorMatrix {
+
+    private final int rowsPerChunk;
+    private final DoubleBuffer[] doubleChunks;
+    private final FloatBuffer[] floatChunks;
+    private final ThreadLocal<double[]> rowBuffer = ThreadLocal.withInitial(() -> new double[0]);
+
+    /**
+     * Maps a matrix stored in a file.
+     *
+     * @param channel channel of the file
+     * @param position position of the file where the first row starts
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param bytesPerValue 8 for double values, 4 for float values
+     * @param order byte order of the values
+     * @throws IOException when the file cannot be mapped
+     */
+    public MappedFactorMatrix(FileChannel channel, long position, int rows, int columns, int bytesPerValue, ByteOrder order) throws IOException {
+        super(rows, columns);
+        if (bytesPerValue != 8 && bytesPerValue != 4) {
+            throw new IllegalArgumentException("unsupported value size " + bytesPerValue);
+        }
+        long rowBytes = (long) columns * bytesPerValue;
+        this.rowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / Math.max(1, rowBytes));
+        int numChunks = (rows + rowsPerChunk - 1) / rowsPerChunk;
+        this.doubleChunks = bytesPerValue == 8 ? new DoubleBuffer[numChunks] : null;
+        this.floatChunks = bytesPerValue == 4 ? new FloatBuffer[numChunks] : null;
+
+        for (int c = 0; c < numChunks; c++) {
+            int first = c * rowsPerChunk;
+            int n = Math.min(rowsPerChunk, rows - first);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + first * rowBytes, n * rowBytes);
+            buffer.order(order);
+            if (doubleChunks != null) {
+                doubleChunks[c] = buffer.asDoubleBuffer();
+            } else {
+                floatChunks[c] = buffer.asFloatBuffer();
+            }
+        }
+    }
+
+    /**
+     * Tells whether the values are stored in single precision.
+     *
+     * @return true for float values, false for double values
+     */
+    public boolean isFloat() {
+        return floatChunks != null;
+    }
+
+    @Override
+    public double get(int row, int k) {
+        int offset = (row % rowsPerChunk) * columns + k;
+        if (doubleChunks != null) {
+            return doubleChunks[row / rowsPerChunk].get(offset);
+        } else {
+            return floatChunks[row / rowsPerChunk].get(offset);
+        }
+    }
+
+    @Override
+    public void set(int row, int k, double value) {
+        int offset = (row % rowsPerChunk) * columns + k;
+        if (doubleChunks != null) {
+            doubleChunks[row / rowsPerChunk].put(offset, value);
+        } else {
+            floatChunks[row / rowsPerChunk].put(offset, (float) value);
+        }
+    }
+
+    @Override
+    public void getRow(int row, double[] dst, int offset) {
+        int j = (row % rowsPerChunk) * columns;
+        if (doubleChunks != null) {
+            DoubleBuffer x = doubleChunks[row / rowsPerChunk];
+            for (int k = 0; k < columns; k++) {
+                dst[offset + k] = x.get(j + k);
+            }
+        } else {
+            FloatBuffer x = floatChunks[row / rowsPerChunk];
+            for (int k = 0; k < columns; k++) {
+                dst[offset + k] = x.get(j + k);
+            }
+        }
+    }
+
+    @Override
+    public void setRow(int row, double[] src, int offset) {
+        for (int k = 0; k < columns; k++) {
+            set(row, k, src[offset + k]);
+        }
+    }
+
+    @Override
+    public void assignRow(int row, double value) {
+        for (int k = 0; k < columns; k++) {
+            set(row, k, value);
+        }
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        // the row is copied so that the kernels, and thus the scores, are the same as for the heap matrices
+        double[] x = rowBuffer.get();
+        if (x.length != columns) {
+            x = new double[columns];
+            rowBuffer.set(x);
+        }
+        getRow(row, x, 0);
+        return Kernels.get().dot(x, 0, v, 0, columns);
+    }
+
+    @Override
+    public void axpy(int row, double a, double[] y) {
+        int offset = (row % rowsPerChunk) * columns;
+        if (doubleChunks != null) {
+            DoubleBuffer x = doubleChunks[row / rowsPerChunk];
+            for (int k = 0; k < columns; k++) {
+                y[k] += a * x.get(offset + k);
+            }
+        } else {
+            FloatBuffer x = floatChunks[row / rowsPerChunk];
+            for (int k = 0; k < columns; k++) {
+                y[k] += a * x.get(offset + k);
+            }
+        }
+    }
+
+    /**
+     * Copies the matrix onto the heap.
+     *
+     * @return DoubleFactorMatrix or FloatFactorMatrix, depending on the precision of the values
+     */
+    @Override
+    public FactorMatrix copy() {
+        int chunkLength = rowsPerChunk * columns;
+        if (doubleChunks != null) {
+            double[] data = new double[rows * columns];
+            for (int c = 0; c < doubleChunks.length; c++) {
+                DoubleBuffer x = doubleChunks[c].duplicate();
+                x.get(data, c * chunkLength, x.remaining());
+            }
+            return new DoubleFactorMatrix(rows, columns, data);
+        } else {
+            float[] data = new float[rows * columns];
+            for (int c = 0; c < floatChunks.length; c++) {
+                FloatBuffer x = floatChunks[c].duplicate();
+                x.get(data, c * chunkLength, x.remaining());
+            }
+            return new FloatFactorMatrix(rows, columns, data);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Item factors compressed by product quantization (Jegou et al., TPAMI 2011). The K columns are split into m
+ * subspaces of contiguous columns and every subspace has a codebook of at most 256 centroids learnt by k-means, so
+ * that a row is stored as m one-byte codes instead of K doubles.
+ * <p>
+ * Rows are scored with asymmetric distance computation: the query vector is not quantized, the inner products of
+ * each of its subvectors with every centroid are computed once per query ({@link #table(double[])}) and the
+ * approximate score of a row is the sum of m entries of that table.
+ */
+public class ProductQuantizedFactors {
+
+    private static final Logger LOG = Logger.getLogger(ProductQuantizedFactors.class.getName());
+
+    private final int rows;
+    private final int columns;
+    private final int numCentroids;
+    private final int[] offsets;
+    private final double[] centroids;
+    private final byte[] codes;
+
+    private ProductQuantizedFactors(int rows, int columns, int numSubspaces, int numCentroids) {
+        this.rows = rows;
+        this.columns = columns;
+        this.numCentroids = numCentroids;
+        this.offsets = new int[numSubspaces + 1];
+        for (int s = 0; s <= numSubspaces; s++) {
+            offsets[s] = (int) ((long) s * columns / numSubspaces);
+        }
+        this.centroids = new double[numCentroids * columns];
+        this.codes = new byte[rows * numSubspaces];
+    }
+
+    /**
+     * Learns the codebooks on a sample of the rows and encodes all the rows.
+     *
+     * @param q factor matrix
+     * @param numSubspaces number of subspaces, i.e., bytes per row
+     * @param numCentroids number of centroids of every subspace, at most 256
+     * @param numIter number of k-means iterations
+     * @param sampleSize maximum number of rows used to learn the codebooks
+     * @param seed random seed of the sample and of the initial centroids
+     * @return compressed factors
+     * @throws IllegalArgumentException if q has no rows, or numSubspaces, numCentroids or sampleSize are out of range
+     */
+    public static ProductQuantizedFactors quantize(FactorMatrix q, int numSubspaces, int numCentroids, int numIter, int sampleSize, long seed) {
+        if (numCentroids < 1 || numCentroids > 256) {
+            throw new IllegalArgumentException("between 1 and 256 centroids, not " + numCentroids);
+        }
+        if (numSubspaces < 1 || numSubspaces > q.columns()) {
+            throw new IllegalArgumentException("between 1 and " + q.columns() + " subspaces, not " + numSubspaces);
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("sample size must be positive, not " + sampleSize);
+        }
+        if (q.rows() == 0) {
+            throw new IllegalArgumentException("no rows to quantize");
+        }
+        long time0 = System.nanoTime();
+        final int K = q.columns();
+        ProductQuantizedFactors pq = new ProductQuantizedFactors(q.rows(), K, numSubspaces, numCentroids);
+
+        Random random = new Random(seed);
+        int n = Math.min(sampleSize, q.rows());
+        int[] sample = random.ints(0, q.rows()).distinct().limit(n).toArray();
+        double[] x = new double[n * K];
+        for (int j = 0; j < n; j++) {
+            q.getRow(sample[j], x, j * K);
+        }
+        long[] seeds = random.longs(numSubspaces).toArray();
+        IntStream.range(0, numSubspaces).parallel().forEach(s -> pq.kmeans(s, x, n, numIter, new Random(seeds[s])));
+
+        IntStream.range(0, q.rows()).parallel().forEach(row -> {
+            double[] v = new double[K];
+            q.getRow(row, v, 0);
+            for (int s = 0; s < numSubspaces; s++) {
+                pq.codes[row * numSubspaces + s] = (byte) pq.nearest(s, v, 0);
+            }
+        });
+
+        LOG.log(Level.INFO, String.format("quantized %d x %d factors into %d bytes in %.2fs", q.rows(), K, pq.bytes(), (System.nanoTime() - time0) / 1_000_000_000.0));
+        return pq;
+    }
+
+    private void kmeans(int s, double[] x, int n, int numIter, Random random) {
+        final int K = columns;
+        final int o = offsets[s];
+        final int d = offsets[s + 1] - o;
+        int[] init = random.ints(0, n).distinct().limit(Math.min(n, numCentroids)).toArray();
+        for (int c = 0; c < numCentroids; c++) {
+            System.arraycopy(x, init[c % init.length] * K + o, centroids, c * K + o, d);
+        }
+
+        int[] assignment = new int[n];
+        double[] sums = new double[numCentroids * d];
+        int[] counts = new int[numCentroids];
+        for (int t = 0; t < numIter; t++) {
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(counts, 0);
+            for (int j = 0; j < n; j++) {
+                int c = nearest(s, x, j * K);
+                assignment[j] = c;
+                counts[c]++;
+                for (int k = 0; k < d; k++) {
+                    sums[c * d + k] += x[j * K + o + k];
+                }
+            }
+            for (int c = 0; c < numCentroids; c++) {
+                if (counts[c] > 0) {
+                    for (int k = 0; k < d; k++) {
+                        centroids[c * K + o + k] = sums[c * d + k] / counts[c];
+                    }
+                } else {
+                    // empty cluster, restart it from a random row
+                    System.arraycopy(x, random.nextInt(n) * K + o, centroids, c * K + o, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closest centroid of subspace s to the subvector of v starting at vo.
+     */
+    private int nearest(int s, double[] v, int vo) {
+        final int o = offsets[s];
+        final int d = offsets[s + 1] - o;
+        int best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < numCentroids; c++) {
+            double dist = 0.0;
+            for (int k = 0; k < d; k++) {
+                double diff = v[vo + o + k] - centroids[c * columns + o + k];
+                dist += diff * diff;
+            }
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return number of rows
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of columns of the original factors.
+     *
+     * @return number of columns
+     */
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of subspaces, i.e., bytes per row.
+     *
+     * @return number of subspaces
+     */
+    public int numSubspaces() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Memory used by the codes and the codebooks.
+     *
+     * @return number of bytes
+     */
+    public long bytes() {
+        return codes.length + 8L * centroids.length;
+    }
+
+    /**
+     * Inner products of the subvectors of a query with the centroids of their subspaces.
+     *
+     * @param v query vector of length columns()
+     * @return table with numSubspaces() * 256 entries
+     */
+    public double[] table(double[] v) {
+        int m = numSubspaces();
+        double[] table = new double[m * 256];
+        for (int s = 0; s < m; s++) {
+            int o = offsets[s];
+            int d = offsets[s + 1] - o;
+            for (int c = 0; c < numCentroids; c++) {
+                double dot = 0.0;
+                for (int k = 0; k < d; k++) {
+                    dot += v[o + k] * centroids[c * columns + o + k];
+                }
+                table[s * 256 + c] = dot;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Approximate inner product of a row and the query of a table.
+     *
+     * @param row row index
+     * @param table table of the query, see {@link #table(double[])}
+     * @return approximate inner product
+     */
+    public double score(int row, double[] table) {
+        int m = numSubspaces();
+        int base = row * m;
+        double score = 0.0;
+        for (int s = 0; s < m; s++) {
+            score += table[s * 256 + (codes[base + s] & 0xFF)];
+        }
+        return score;
+    }
+
+    /**
+     * Reconstructs a row from its codes.
+     *
+     * @param row row index
+     * @param dst destination array
+     * @param offset position of dst where the row starts
+     */
+    public void decode(int row, double[] dst, int offset) {
+        int m = numSubspaces();
+        for (int s = 0; s < m; s++) {
+            int c = codes[row * m + s] & 0xFF;
+            int o = offsets[s];
+            System.arraycopy(centroids, c * columns + o, dst, offset + o, offsets[s + 1] - o);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Runs the row updates of an ALS half-iteration on a dedicated pool and measures how busy every worker thread is.
+ * <p>
+ * In balanced mode the rows are split into contiguous chunks of roughly the same estimated cost, about chunksPerThread
+ * chunks per thread, and the chunks are queued from the most to the least expensive, so that the heavy rows (popular
+ * tracks, long playlists) start first and the light ones fill the gaps at the end. Otherwise the rows are processed
+ * by a parallel stream inside the pool, which splits them by count and ignores their cost.
+ */
+public class RowScheduler {
+
+    private final ForkJoinPool pool;
+    private final int numThreads;
+    private final boolean balanced;
+    private final int chunksPerThread;
+    private final AtomicLongArray busy;
+    private final Queue<Integer> freeSlots;
+    private long wall;
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads number of worker threads
+     * @param balanced true to split the rows into chunks of equal cost, false to use a parallel stream
+     * @param chunksPerThread number of chunks per thread in balanced mode
+     */
+    public RowScheduler(int numThreads, boolean balanced, int chunksPerThread) {
+        this.numThreads = numThreads;
+        this.balanced = balanced;
+        this.chunksPerThread = chunksPerThread;
+        // last slot for the caller thread, which may run some tasks while it waits
+        this.busy = new AtomicLongArray(numThreads + 1);
+        // pool indices are not dense, every live worker takes one of the numThreads slots instead
+        this.freeSlots = new ConcurrentLinkedQueue<>();
+        for (int slot = 0; slot < numThreads; slot++) {
+            freeSlots.add(slot);
+        }
+        this.pool = new ForkJoinPool(numThreads, p -> {
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                return null;
+            }
+            Worker worker = new Worker(p, slot);
+            worker.setName("mf-worker-" + slot);
+            worker.setDaemon(true);
+            return worker;
+        }, null, false);
+        this.wall = 0;
+    }
+
+    /**
+     * Worker thread with a dense slot in [0, numThreads), returned when the thread terminates.
+     */
+    private final class Worker extends ForkJoinWorkerThread {
+
+        private final int slot;
+
+        private Worker(ForkJoinPool pool, int slot) {
+            super(pool);
+            this.slot = slot;
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            try {
+                super.onTermination(exception);
+            } finally {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Applies an action to every row.
+     *
+     * @param rows rows to be processed
+     * @param cost estimated cost of every row, e.g. K plus its number of preferences
+     * @param action row update
+     */
+    public void forEach(int[] rows, IntUnaryOperator cost, IntConsumer action) {
+        long time0 = System.nanoTime();
+        try {
+            if (balanced) {
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int[] chunk : chunks(rows, cost)) {
+                    tasks.add(() -> {
+                        long t0 = System.nanoTime();
+                        for (int row : chunk) {
+                            action.accept(row);
+                        }
+                        busy.addAndGet(slot(), System.nanoTime() - t0);
+                        return null;
+                    });
+                }
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } else {
+                pool.submit(() -> IntStream.of(rows).parallel().forEach(row -> {
+                    long t0 = System.nanoTime();
+                    action.accept(row);
+                    busy.addAndGet(slot(), System.nanoTime() - t0);
+                })).get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+        wall += System.nanoTime() - time0;
+    }
+
+    private int slot() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).getPool() == pool) {
+            return ((Worker) thread).slot;
+        }
+        return numThreads;
+    }
+
+    /**
+     * Splits the rows into contiguous chunks of similar cost. A row more expensive than the target cost of a chunk
+     * gets a chunk of its own.
+     *
+     * @param rows rows
+     * @param cost estimated cost of every row
+     * @return chunks, sorted by decreasing cost
+     */
+    private List<int[]> chunks(int[] rows, IntUnaryOperator cost) {
+        long[] costs = new long[rows.length];
+        long total = 0;
+        for (int i = 0; i < rows.length; i++) {
+            costs[i] = cost.applyAsInt(rows[i]);
+            total += costs[i];
+        }
+        long target = Math.max(1, total / ((long) numThreads * chunksPerThread));
+
+        List<int[]> chunks = new ArrayList<>();
+        List<Long> chunkCosts = new ArrayList<>();
+        int start = 0;
+        long acc = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (acc > 0 && acc + costs[i] > target) {
+                chunks.add(Arrays.copyOfRange(rows, start, i));
+                chunkCosts.add(acc);
+                start = i;
+                acc = 0;
+            }
+            acc += costs[i];
+        }
+        if (start < rows.length) {
+            chunks.add(Arrays.copyOfRange(rows, start, rows.length));
+            chunkCosts.add(acc);
+        }
+
+        Integer[] order = IntStream.range(0, chunks.size()).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, comparingLong(c -> -chunkCosts.get(c)));
+        List<int[]> sorted = new ArrayList<>(chunks.size());
+        for (int c : order) {
+            sorted.add(chunks.get(c));
+        }
+        return sorted;
+    }
+
+    /**
+     * Busy time of every worker thread since the last call, followed by the time of the caller thread. Then resets
+     * the counters.
+     *
+     * @return busy times in nanoseconds, numThreads + 1 values
+     */
+    public long[] busyTimes() {
+        long[] times = new long[numThreads + 1];
+        for (int slot = 0; slot <= numThreads; slot++) {
+            times[slot] = busy.getAndSet(slot, 0);
+        }
+        wall = 0;
+        return times;
+    }
+
+    /**
+     * Summary of the busy times of the worker threads since the last call, then resets the counters.
+     *
+     * @return per-thread busy times and utilization of the pool while running rows
+     */
+    public String report() {
+        long elapsed = wall;
+        long[] times = busyTimes();
+        StringBuilder sb = new StringBuilder("busy =");
+        long sum = 0;
+        for (long time : times) {
+            sb.append(String.format(" %.2fs", time / 1_000_000_000.0));
+            sum += time;
+        }
+        double utilization = elapsed == 0 ? 0.0 : sum / ((double) numThreads * elapsed);
+        sb.append(String.format(" utilization = %.1f%%", 100 * utilization));
+        return sb.toString();
+    }
+}
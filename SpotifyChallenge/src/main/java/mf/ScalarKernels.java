@@ -0,0 +1,121 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+/**
+ * Plain Java kernels, the fallback when the vector kernels are not available.
+ * <p>
+ * The dot products are unrolled by four and add the terms in the same order as Colt's DenseDoubleMatrix2D.zMult,
+ * so that scores are bit-for-bit identical to those of RankSys MFRecommender. The weighted dot products add the
+ * terms one by one, as the original RR1 loops of MFFactorizer.
+ */
+public class ScalarKernels extends Kernels {
+
+    @Override
+    public double dot(double[] x, int xo, double[] y, int yo, int n) {
+        double sum = 0.0;
+        int k = 0;
+        for (int r = n % 4; k < r; k++) {
+            sum += x[xo + k] * y[yo + k];
+        }
+        for (; k < n; k += 4) {
+            int i = xo + k;
+            int j = yo + k;
+            sum += x[i] * y[j] + x[i + 1] * y[j + 1] + x[i + 2] * y[j + 2] + x[i + 3] * y[j + 3];
+        }
+        return sum;
+    }
+
+    /**
+     * Four dot products at a time, each with the term order of {@link #dot(double[], int, double[], int, int)}, so
+     * that the four sums are independent chains of additions.
+     */
+    @Override
+    public void dots(double[] x, int xo, double[] y, int yo, int m, int n, double[] out, int oo) {
+        int j = 0;
+        for (; j + 4 <= m; j += 4) {
+            int y0 = yo + j * n;
+            int y1 = y0 + n;
+            int y2 = y1 + n;
+            int y3 = y2 + n;
+            double s0 = 0.0;
+            double s1 = 0.0;
+            double s2 = 0.0;
+            double s3 = 0.0;
+            int k = 0;
+            for (int r = n % 4; k < r; k++) {
+                double xk = x[xo + k];
+                s0 += xk * y[y0 + k];
+                s1 += xk * y[y1 + k];
+                s2 += xk * y[y2 + k];
+                s3 += xk * y[y3 + k];
+            }
+            for (; k < n; k += 4) {
+                int i = xo + k;
+                double x0 = x[i];
+                double x1 = x[i + 1];
+                double x2 = x[i + 2];
+                double x3 = x[i + 3];
+                s0 += x0 * y[y0 + k] + x1 * y[y0 + k + 1] + x2 * y[y0 + k + 2] + x3 * y[y0 + k + 3];
+                s1 += x0 * y[y1 + k] + x1 * y[y1 + k + 1] + x2 * y[y1 + k + 2] + x3 * y[y1 + k + 3];
+                s2 += x0 * y[y2 + k] + x1 * y[y2 + k + 1] + x2 * y[y2 + k + 2] + x3 * y[y2 + k + 3];
+                s3 += x0 * y[y3 + k] + x1 * y[y3 + k + 1] + x2 * y[y3 + k + 2] + x3 * y[y3 + k + 3];
+            }
+            out[oo + j] = s0;
+            out[oo + j + 1] = s1;
+            out[oo + j + 2] = s2;
+            out[oo + j + 3] = s3;
+        }
+        for (; j < m; j++) {
+            out[oo + j] = dot(x, xo, y, yo + j * n, n);
+        }
+    }
+
+    @Override
+    public double dot(float[] x, int xo, double[] y, int yo, int n) {
+        double sum = 0.0;
+        int k = 0;
+        for (int r = n % 4; k < r; k++) {
+            sum += x[xo + k] * y[yo + k];
+        }
+        for (; k < n; k += 4) {
+            int i = xo + k;
+            int j = yo + k;
+            sum += x[i] * y[j] + x[i + 1] * y[j + 1] + x[i + 2] * y[j + 2] + x[i + 3] * y[j + 3];
+        }
+        return sum;
+    }
+
+    @Override
+    public double dot(double[] c, double[] x, int xo, double[] y, int yo, int n) {
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += c[i] * x[xo + i] * y[yo + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double a, double[] x, int xo, double[] y, int yo, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yo + i] += a * x[xo + i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "scalar kernels";
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf.rec;
+
+import es.uam.eps.ir.ranksys.core.Recommendation;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.DoubleFactorMatrix;
+import mf.FactorMatrix;
+import mf.FlatFactorization;
+import mf.Kernels;
+import org.ranksys.core.util.tuples.Tuple2od;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Generates the top-N recommendations of many users at once from a matrix factorization. It replaces
+ * FastFilterRecommenderRunner + {@link FlatMFRecommender} when all the items are scored for every user.
+ * <p>
+ * The users are processed in blocks, in parallel, and every block is multiplied by tiles of the item matrix as in a
+ * blocked matrix product. The vectors of the block stay in cache while the items are scored, every item vector is
+ * loaded once per block and multiplied by several user vectors at a time (see {@link Kernels#dots}), and single
+ * precision or memory-mapped item factors are converted to double once per tile instead of once per user. Every
+ * user keeps a bounded heap of its best items, and the filter (e.g. not in train) is only tested for the items that
+ * would enter the heap.
+ * <p>
+ * The scores are computed by the same {@link Kernels} as FlatMFRecommender and ties are broken in the same way, so
+ * the recommendations are identical. They are passed to the consumer, e.g. a RecommendationFormat.Writer, in the
+ * order of the users.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class BatchMFRecommenderRunner<U, I> {
+
+    private static final Logger LOG = Logger.getLogger(BatchMFRecommenderRunner.class.getName());
+
+    private final List<U> users;
+    private final Function<U, IntPredicate> filter;
+    private final int maxLength;
+    private final int blockSize;
+    private final int tileSize;
+
+    /**
+     * Constructor. Blocks of 64 users and tiles of 256 items.
+     *
+     * @param users target users
+     * @param filter item filter of every user, with the item indices of the factorization
+     * @param maxLength maximum length of the recommendation lists
+     */
+    public BatchMFRecommenderRunner(Stream<U> users, Function<U, IntPredicate> filter, int maxLength) {
+        this(users, filter, maxLength, 64, 256);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param users target users
+     * @param filter item filter of every user, with the item indices of the factorization
+     * @param maxLength maximum length of the recommendation lists
+     * @param blockSize number of users scored together
+     * @param tileSize number of item vectors of every tile
+     */
+    public BatchMFRecommenderRunner(Stream<U> users, Function<U, IntPredicate> filter, int maxLength, int blockSize, int tileSize) {
+        this.users = users.collect(toList());
+        this.filter = filter;
+        this.maxLength = maxLength;
+        this.blockSize = blockSize;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Generates the recommendations of all the target users.
+     *
+     * @param factorization matrix factorization
+     * @param consumer consumer of the recommendations, e.g. a RecommendationFormat.Writer
+     */
+    public void run(Factorization<U, I> factorization, Consumer<Recommendation<U, I>> consumer) {
+        long time0 = System.nanoTime();
+        FlatFactorization<U, I> flat = FlatFactorization.of(factorization);
+        int numBlocks = (users.size() + blockSize - 1) / blockSize;
+
+        IntStream.range(0, numBlocks).parallel()
+                .mapToObj(block -> recommend(flat, users.subList(block * blockSize, Math.min(users.size(), (block + 1) * blockSize))))
+                .forEachOrdered(recommendations -> recommendations.forEach(consumer));
+
+        double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+        LOG.log(Level.INFO, String.format("scored %d users in %.2fs (%.2fms per user)", users.size(), time1, 1000 * time1 / users.size()));
+    }
+
+    private List<Recommendation<U, I>> recommend(FlatFactorization<U, I> factorization, List<U> block) {
+        final FactorMatrix p = factorization.getUserFactors();
+        final FactorMatrix q = factorization.getItemFactors();
+        final int K = factorization.getK();
+        final int numItems = q.rows();
+        final Kernels kernels = Kernels.get();
+
+        // users without factors get an empty recommendation, as with FlatMFRecommender
+        int[] uidxs = new int[block.size()];
+        int B = 0;
+        for (int j = 0; j < block.size(); j++) {
+            uidxs[j] = factorization.user2uidx(block.get(j));
+            if (uidxs[j] >= 0) {
+                B++;
+            }
+        }
+        double[] pb = new double[B * K];
+        double[] scores = new double[B];
+        TopN[] topNs = new TopN[B];
+        IntPredicate[] filters = new IntPredicate[B];
+        for (int j = 0, b = 0; j < block.size(); j++) {
+            if (uidxs[j] >= 0) {
+                p.getRow(uidxs[j], pb, b * K);
+                topNs[b] = new TopN(Math.min(maxLength, numItems));
+                filters[b] = filter.apply(block.get(j));
+                b++;
+            }
+        }
+
+        // heap matrices are read in place, the others are copied tile by tile
+        double[] qe = q instanceof DoubleFactorMatrix ? ((DoubleFactorMatrix) q).elements() : null;
+        double[] tile = qe == null ? new double[tileSize * K] : null;
+
+        for (int t0 = 0; t0 < numItems; t0 += tileSize) {
+            int t1 = Math.min(numItems, t0 + tileSize);
+            double[] qt;
+            int base;
+            if (qe != null) {
+                qt = qe;
+                base = t0 * K;
+            } else {
+                for (int iidx = t0; iidx < t1; iidx++) {
+                    q.getRow(iidx, tile, (iidx - t0) * K);
+                }
+                qt = tile;
+                base = 0;
+            }
+
+            for (int iidx = t0, o = base; iidx < t1; iidx++, o += K) {
+                kernels.dots(qt, o, pb, 0, B, K, scores, 0);
+                for (int b = 0; b < B; b++) {
+                    double score = scores[b];
+                    if (topNs[b].accepts(iidx, score) && filters[b].test(iidx)) {
+                        topNs[b].add(iidx, score);
+                    }
+                }
+            }
+        }
+
+        List<Recommendation<U, I>> recommendations = new ArrayList<>(block.size());
+        for (int j = 0, b = 0; j < block.size(); j++) {
+            if (uidxs[j] >= 0) {
+                recommendations.add(new Recommendation<>(block.get(j), topNs[b].toList(factorization)));
+                b++;
+            } else {
+                recommendations.add(new Recommendation<>(block.get(j), new ArrayList<>()));
+            }
+        }
+        return recommendations;
+    }
+
+    /**
+     * Bounded min-heap of (item, score), ordered by score and then by item index as RankSys IntDoubleTopN.
+     */
+    private static final class TopN {
+
+        private final int[] idxs;
+        private final double[] scores;
+        private int size;
+
+        private TopN(int capacity) {
+            this.idxs = new int[capacity];
+            this.scores = new double[capacity];
+            this.size = 0;
+        }
+
+        private static int compare(double s1, int i1, double s2, int i2) {
+            int c = Double.compare(s1, s2);
+            return c != 0 ? c : Integer.compare(i1, i2);
+        }
+
+        private boolean accepts(int iidx, double score) {
+            return idxs.length > 0 && (size < idxs.length || compare(score, iidx, scores[0], idxs[0]) > 0);
+        }
+
+        private void add(int iidx, double score) {
+            int i;
+            if (size < idxs.length) {
+                i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) / 2;
+                    if (compare(scores[parent], idxs[parent], score, iidx) <= 0) {
+                        break;
+                    }
+                    idxs[i] = idxs[parent];
+                    scores[i] = scores[parent];
+                    i = parent;
+                }
+            } else {
+                i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && compare(scores[child + 1], idxs[child + 1], scores[child], idxs[child]) < 0) {
+                        child++;
+                    }
+                    if (compare(scores[child], idxs[child], score, iidx) >= 0) {
+                        break;
+                    }
+                    idxs[i] = idxs[child];
+                    scores[i] = scores[child];
+                    i = child;
+                }
+            }
+            idxs[i] = iidx;
+            scores[i] = score;
+        }
+
+        private <I> List<Tuple2od<I>> toList(FlatFactorization<?, I> factorization) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compare(scores[b], idxs[b], scores[a], idxs[a]));
+            List<Tuple2od<I>> items = new ArrayList<>(size);
+            for (int i : order) {
+                items.add(tuple(factorization.iidx2item(idxs[i]), scores[i]));
+            }
+            return items;
+        }
+    }
+}
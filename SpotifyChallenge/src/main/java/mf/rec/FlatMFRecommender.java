@@ -0,0 +1,109 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf.rec;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import mf.FactorMatrix;
+import mf.FlatFactorization;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Matrix factorization recommender working directly on flat factor matrices. It produces the same recommendations
+ * as RankSys MFRecommender, but scores only the items that pass the filter and does not create Colt views or a full
+ * score vector per user. It also scores single precision factorizations, which have no Colt matrices.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class FlatMFRecommender<U, I> extends AbstractFastRecommender<U, I> {
+
+    private final FlatFactorization<U, I> factorization;
+    private final FactorMatrix p;
+    private final FactorMatrix q;
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param factorization matrix factorization, copied into flat matrices if it is not a FlatFactorization
+     */
+    public FlatMFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, Factorization<U, I> factorization) {
+        super(uIndex, iIndex);
+        this.factorization = FlatFactorization.of(factorization);
+        this.p = this.factorization.getUserFactors();
+        this.q = this.factorization.getItemFactors();
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        IntDoubleTopN topN = new IntDoubleTopN(Math.min(maxLength, q.rows()));
+        for (int iidx = 0; iidx < q.rows(); iidx++) {
+            if (filter.test(iidx)) {
+                topN.add(iidx, q.dot(iidx, pu));
+            }
+        }
+        topN.sort();
+
+        List<Tuple2id> items = topN.reverseStream()
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        List<Tuple2id> items = candidates
+                .mapToObj(iidx -> tuple(iidx, q.dot(iidx, pu)))
+                .sorted(comparingDouble(Tuple2id::v2).reversed())
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    private double[] getUserVector(int uidx) {
+        int fuidx = factorization.user2uidx(uidx2user(uidx));
+        if (fuidx < 0) {
+            return null;
+        }
+        double[] pu = new double[p.columns()];
+        p.getRow(fuidx, pu, 0);
+        return pu;
+    }
+}
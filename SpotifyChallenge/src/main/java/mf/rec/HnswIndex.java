@@ -0,0 +1,650 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf.rec;
+
+import mf.FactorMatrix;
+import mf.Kernels;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin, TPAMI 2018) over the item factors of a matrix
+ * factorization, for approximate maximum inner product search.
+ * <p>
+ * Inner products are turned into cosine similarities by the usual augmentation: every item vector q_i gets an extra
+ * coordinate sqrt(M^2 - |q_i|^2), where M is the largest norm, and is divided by M, so that all the item vectors have
+ * norm 1 and the inner product with a user vector padded with a 0 is the original one divided by M. The graph is
+ * built on the augmented vectors, stored in single precision, and the candidates found by a query are re-scored
+ * exactly with the item factors, so the scores of the returned items are the ones of {@link FlatMFRecommender}.
+ * <p>
+ * The items are inserted in parallel, with striped locks on the neighbor lists, so two builds can produce different
+ * graphs. As in hnswlib, an item whose level is above the current top level is inserted while holding the lock of
+ * the entry point, so that the other inserts wait for its links before they start from it.
+ * <p>
+ * File layout of {@link #save(String)} (big endian):
+ * <pre>
+ * header    magic "HNSW", version, numItems, K, M, maxLevel, entry point, largest norm (double)
+ * levels    level of every item
+ * level 0   number of neighbors and 2M neighbor slots of every item
+ * upper     for every item with level l &gt; 0, number of neighbors and M neighbor slots of levels 1..l
+ * </pre>
+ * The vectors are not saved, they are computed again from the item factors when the index is loaded.
+ */
+public class HnswIndex {
+
+    private static final Logger LOG = Logger.getLogger(HnswIndex.class.getName());
+
+    /**
+     * Magic number at the start of every index file ("HNSW").
+     */
+    public static final int MAGIC = 0x484E5357;
+
+    /**
+     * Current version of the format.
+     */
+    public static final int VERSION = 1;
+
+    private static final int NUM_LOCKS = 1 << 16;
+
+    private final FactorMatrix q;
+    private final int numItems;
+    private final int dim;
+    private final int M;
+    private final int M0;
+    private final double maxNorm;
+    private final float[] vectors;
+    private final int[] levels;
+    private final int[] counts0;
+    private final int[] links0;
+    private final int[][] upperCounts;
+    private final int[][] upperLinks;
+    private final Object[] locks;
+    private final ThreadLocal<Visited> visited;
+    private final ReentrantLock entryLock = new ReentrantLock();
+    private int entryPoint;
+    private int maxLevel;
+
+    private HnswIndex(FactorMatrix q, int M, int[] levels) {
+        this.q = q;
+        this.numItems = q.rows();
+        this.dim = q.columns() + 1;
+        this.M = M;
+        this.M0 = 2 * M;
+        this.levels = levels;
+        this.counts0 = new int[numItems];
+        this.links0 = new int[numItems * M0];
+        this.upperCounts = new int[numItems][];
+        this.upperLinks = new int[numItems][];
+        for (int i = 0; i < numItems; i++) {
+            if (levels[i] > 0) {
+                upperCounts[i] = new int[levels[i]];
+                upperLinks[i] = new int[levels[i] * M];
+            }
+        }
+        this.locks = new Object[NUM_LOCKS];
+        for (int l = 0; l < NUM_LOCKS; l++) {
+            locks[l] = new Object();
+        }
+        this.visited = ThreadLocal.withInitial(() -> new Visited(numItems));
+
+        final int K = q.columns();
+        double[] norms = new double[numItems];
+        double[] row = new double[K];
+        double max = 0.0;
+        for (int i = 0; i < numItems; i++) {
+            q.getRow(i, row, 0);
+            double norm2 = 0.0;
+            for (int k = 0; k < K; k++) {
+                norm2 += row[k] * row[k];
+            }
+            norms[i] = norm2;
+            max = Math.max(max, norm2);
+        }
+        this.maxNorm = Math.sqrt(max);
+        this.vectors = new float[numItems * dim];
+        double scale = maxNorm > 0 ? 1 / maxNorm : 0.0;
+        for (int i = 0; i < numItems; i++) {
+            q.getRow(i, row, 0);
+            for (int k = 0; k < K; k++) {
+                vectors[i * dim + k] = (float) (row[k] * scale);
+            }
+            vectors[i * dim + K] = (float) (Math.sqrt(Math.max(0.0, max - norms[i])) * scale);
+        }
+    }
+
+    /**
+     * Builds the index.
+     *
+     * @param q item factors
+     * @param M number of neighbors per item in the upper levels, 2M in level 0
+     * @param efConstruction size of the candidate list when an item is inserted
+     * @param seed random seed of the levels of the items
+     * @return index
+     */
+    public static HnswIndex build(FactorMatrix q, int M, int efConstruction, long seed) {
+        long time0 = System.nanoTime();
+        Random random = new Random(seed);
+        double mL = 1 / Math.log(M);
+        int[] levels = new int[q.rows()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = (int) (-Math.log(1 - random.nextDouble()) * mL);
+        }
+
+        HnswIndex index = new HnswIndex(q, M, levels);
+        if (index.numItems > 0) {
+            index.entryPoint = 0;
+            index.maxLevel = levels[0];
+            IntStream.range(1, index.numItems).parallel().forEach(i -> index.insert(i, efConstruction));
+        }
+
+        LOG.log(Level.INFO, String.format("built index of %d items, %d levels in %.2fs", index.numItems, index.maxLevel + 1, (System.nanoTime() - time0) / 1_000_000_000.0));
+        return index;
+    }
+
+    /**
+     * Finds the items with the largest inner product with a user vector.
+     *
+     * @param pu user vector
+     * @param n number of items to be returned
+     * @param ef size of the candidate list, at least n; larger values give better recall and slower queries
+     * @param filter items that can be returned, e.g. not in the training data of the user
+     * @return at most n (iidx, score) pairs sorted by decreasing exact score
+     */
+    public List<Tuple2id> search(double[] pu, int n, int ef, IntPredicate filter) {
+        if (numItems == 0 || n <= 0) {
+            return new ArrayList<>();
+        }
+        double[] query = Arrays.copyOf(pu, dim);
+        int ep;
+        int top;
+        entryLock.lock();
+        try {
+            ep = entryPoint;
+            top = maxLevel;
+        } finally {
+            entryLock.unlock();
+        }
+        for (int lc = top; lc > 0; lc--) {
+            ep = greedy(query, ep, lc);
+        }
+        Heap results = searchLayer(query, ep, Math.max(ef, n), 0, filter);
+
+        // exact scores of the candidates, ordered as IntDoubleTopN
+        int size = results.size;
+        int[] iidxs = Arrays.copyOf(results.nodes, size);
+        double[] scores = new double[size];
+        for (int j = 0; j < size; j++) {
+            scores[j] = q.dot(iidxs[j], pu);
+        }
+        Integer[] order = new Integer[size];
+        for (int j = 0; j < size; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = Double.compare(scores[b], scores[a]);
+            return c != 0 ? c : Integer.compare(iidxs[b], iidxs[a]);
+        });
+        List<Tuple2id> items = new ArrayList<>(Math.min(n, size));
+        for (int j = 0; j < Math.min(n, size); j++) {
+            items.add(tuple(iidxs[order[j]], scores[order[j]]));
+        }
+        return items;
+    }
+
+    private void insert(int i, int efConstruction) {
+        double[] query = new double[dim];
+        for (int k = 0; k < dim; k++) {
+            query[k] = vectors[i * dim + k];
+        }
+        int level = levels[i];
+        int ep;
+        int top;
+        // an insert that raises the top level keeps the lock until it is the new entry point, otherwise an insert
+        // starting meanwhile from the old entry point would give it no links on the new levels
+        entryLock.lock();
+        boolean raises = level > maxLevel;
+        ep = entryPoint;
+        top = maxLevel;
+        if (!raises) {
+            entryLock.unlock();
+        }
+        try {
+            for (int lc = top; lc > level; lc--) {
+                ep = greedy(query, ep, lc);
+            }
+            for (int lc = Math.min(level, top); lc >= 0; lc--) {
+                Heap candidates = searchLayer(query, ep, efConstruction, lc, null);
+                int[] sorted = candidates.sortedNodes();
+                int[] neighbors = selectNeighbors(query, sorted, sorted.length, M);
+                synchronized (lock(i)) {
+                    setLinks(i, lc, neighbors, neighbors.length);
+                }
+                int maxLinks = lc == 0 ? M0 : M;
+                for (int e : neighbors) {
+                    addLink(e, i, lc, maxLinks);
+                }
+                ep = sorted[0];
+            }
+
+            if (raises) {
+                maxLevel = level;
+                entryPoint = i;
+            }
+        } finally {
+            if (raises) {
+                entryLock.unlock();
+            }
+        }
+    }
+
+    private void addLink(int e, int i, int lc, int maxLinks) {
+        synchronized (lock(e)) {
+            int[] links = links(e, lc);
+            int offset = offset(e, lc);
+            int count = count(e, lc);
+            if (count < maxLinks) {
+                links[offset + count] = i;
+                setCount(e, lc, count + 1);
+                return;
+            }
+
+            // too many neighbors, keep the most diverse among the old ones and the new one
+            double[] base = new double[dim];
+            for (int k = 0; k < dim; k++) {
+                base[k] = vectors[e * dim + k];
+            }
+            int[] candidates = Arrays.copyOfRange(links, offset, offset + count + 1);
+            candidates[count] = i;
+            double[] sims = new double[candidates.length];
+            for (int j = 0; j < candidates.length; j++) {
+                sims[j] = sim(base, candidates[j]);
+            }
+            Integer[] order = new Integer[candidates.length];
+            for (int j = 0; j < order.length; j++) {
+                order[j] = j;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(sims[b], sims[a]));
+            int[] sorted = new int[candidates.length];
+            for (int j = 0; j < sorted.length; j++) {
+                sorted[j] = candidates[order[j]];
+            }
+            int[] neighbors = selectNeighbors(base, sorted, sorted.length, maxLinks);
+            setLinks(e, lc, neighbors, neighbors.length);
+        }
+    }
+
+    /**
+     * Neighbor selection heuristic: a candidate is kept if it is more similar to the base vector than to every
+     * neighbor already kept.
+     */
+    private int[] selectNeighbors(double[] base, int[] sorted, int n, int m) {
+        int[] selected = new int[Math.min(m, n)];
+        int size = 0;
+        double[] candidate = new double[dim];
+        for (int j = 0; j < n && size < selected.length; j++) {
+            int c = sorted[j];
+            for (int k = 0; k < dim; k++) {
+                candidate[k] = vectors[c * dim + k];
+            }
+            double simBase = Kernels.get().dot(base, 0, candidate, 0, dim);
+            boolean good = true;
+            for (int r = 0; r < size && good; r++) {
+                good = sim(candidate, selected[r]) <= simBase;
+            }
+            if (good) {
+                selected[size++] = c;
+            }
+        }
+        return Arrays.copyOf(selected, size);
+    }
+
+    private int greedy(double[] query, int ep, int lc) {
+        double best = sim(query, ep);
+        boolean changed = true;
+        int[] neighbors = new int[M];
+        while (changed) {
+            changed = false;
+            int count;
+            synchronized (lock(ep)) {
+                count = count(ep, lc);
+                System.arraycopy(links(ep, lc), offset(ep, lc), neighbors, 0, count);
+            }
+            for (int j = 0; j < count; j++) {
+                double s = sim(query, neighbors[j]);
+                if (s > best) {
+                    best = s;
+                    ep = neighbors[j];
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Best-first search in one level. All the visited items guide the search, only the ones accepted by the filter
+     * can be in the results.
+     */
+    private Heap searchLayer(double[] query, int ep, int ef, int lc, IntPredicate filter) {
+        Visited v = visited.get();
+        v.next();
+        Heap candidates = new Heap(ef, true);
+        Heap results = new Heap(ef, false);
+
+        double s0 = sim(query, ep);
+        v.mark(ep);
+        candidates.push(ep, s0);
+        if (filter == null || filter.test(ep)) {
+            results.push(ep, s0);
+        }
+
+        int[] neighbors = new int[lc == 0 ? M0 : M];
+        while (candidates.size > 0) {
+            double sc = candidates.topSim();
+            if (results.size >= ef && sc < results.topSim()) {
+                break;
+            }
+            int c = candidates.pop();
+            int count;
+            synchronized (lock(c)) {
+                count = count(c, lc);
+                System.arraycopy(links(c, lc), offset(c, lc), neighbors, 0, count);
+            }
+            for (int j = 0; j < count; j++) {
+                int e = neighbors[j];
+                if (v.marked(e)) {
+                    continue;
+                }
+                v.mark(e);
+                double s = sim(query, e);
+                if (results.size < ef || s > results.topSim()) {
+                    candidates.push(e, s);
+                    if (filter == null || filter.test(e)) {
+                        results.push(e, s);
+                        if (results.size > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private double sim(double[] query, int node) {
+        return Kernels.get().dot(vectors, node * dim, query, 0, dim);
+    }
+
+    private Object lock(int node) {
+        return locks[node & (NUM_LOCKS - 1)];
+    }
+
+    private int[] links(int node, int lc) {
+        return lc == 0 ? links0 : upperLinks[node];
+    }
+
+    private int offset(int node, int lc) {
+        return lc == 0 ? node * M0 : (lc - 1) * M;
+    }
+
+    private int count(int node, int lc) {
+        return lc == 0 ? counts0[node] : upperCounts[node][lc - 1];
+    }
+
+    private void setCount(int node, int lc, int count) {
+        if (lc == 0) {
+            counts0[node] = count;
+        } else {
+            upperCounts[node][lc - 1] = count;
+        }
+    }
+
+    private void setLinks(int node, int lc, int[] neighbors, int count) {
+        System.arraycopy(neighbors, 0, links(node, lc), offset(node, lc), count);
+        setCount(node, lc, count);
+    }
+
+    /**
+     * Saves the graph of the index. Like snapshots, it is written to a temporary file first and then renamed.
+     *
+     * @param path file where the index is written
+     * @throws IOException when the file cannot be written
+     */
+    public void save(String path) throws IOException {
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numItems);
+            out.writeInt(dim - 1);
+            out.writeInt(M);
+            out.writeInt(maxLevel);
+            out.writeInt(entryPoint);
+            out.writeDouble(maxNorm);
+            for (int i = 0; i < numItems; i++) {
+                out.writeInt(levels[i]);
+            }
+            for (int i = 0; i < numItems; i++) {
+                out.writeInt(counts0[i]);
+                for (int j = 0; j < M0; j++) {
+                    out.writeInt(links0[i * M0 + j]);
+                }
+            }
+            for (int i = 0; i < numItems; i++) {
+                for (int l = 0; l < levels[i]; l++) {
+                    out.writeInt(upperCounts[i][l]);
+                    for (int j = 0; j < M; j++) {
+                        out.writeInt(upperLinks[i][l * M + j]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads an index saved by {@link #save(String)}.
+     *
+     * @param path index file
+     * @param q item factors the index was built from
+     * @return index
+     * @throws IOException when the file cannot be read, is not a valid index or was built for other item factors
+     */
+    public static HnswIndex load(String path, FactorMatrix q) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 20))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not an HNSW index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported index version " + version);
+            }
+            int numItems = in.readInt();
+            int K = in.readInt();
+            int M = in.readInt();
+            int maxLevel = in.readInt();
+            int entryPoint = in.readInt();
+            double maxNorm = in.readDouble();
+            if (numItems != q.rows() || K != q.columns()) {
+                throw new IOException("index of " + numItems + " x " + K + " items, factors of " + q.rows() + " x " + q.columns());
+            }
+            int[] levels = new int[numItems];
+            for (int i = 0; i < numItems; i++) {
+                levels[i] = in.readInt();
+            }
+
+            HnswIndex index = new HnswIndex(q, M, levels);
+            if (Double.compare(index.maxNorm, maxNorm) != 0) {
+                throw new IOException("index was built for other item factors");
+            }
+            index.maxLevel = maxLevel;
+            index.entryPoint = entryPoint;
+            for (int i = 0; i < numItems; i++) {
+                index.counts0[i] = in.readInt();
+                for (int j = 0; j < index.M0; j++) {
+                    index.links0[i * index.M0 + j] = in.readInt();
+                }
+            }
+            for (int i = 0; i < numItems; i++) {
+                for (int l = 0; l < levels[i]; l++) {
+                    index.upperCounts[i][l] = in.readInt();
+                    for (int j = 0; j < M; j++) {
+                        index.upperLinks[i][l * M + j] = in.readInt();
+                    }
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Visited marks of a search, reset in constant time by increasing the mark.
+     */
+    private static final class Visited {
+
+        private final int[] marks;
+        private int mark;
+
+        private Visited(int n) {
+            this.marks = new int[n];
+            this.mark = 0;
+        }
+
+        private void next() {
+            mark++;
+            if (mark == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+        }
+
+        private void mark(int node) {
+            marks[node] = mark;
+        }
+
+        private boolean marked(int node) {
+            return marks[node] == mark;
+        }
+    }
+
+    /**
+     * Binary heap of (node, similarity), with the most similar node on top if max is true and the least similar one
+     * otherwise. It grows as needed.
+     */
+    private static final class Heap {
+
+        private final boolean max;
+        private int[] nodes;
+        private double[] sims;
+        private int size;
+
+        private Heap(int capacity, boolean max) {
+            this.max = max;
+            this.nodes = new int[Math.max(1, capacity + 1)];
+            this.sims = new double[nodes.length];
+            this.size = 0;
+        }
+
+        private boolean above(double s1, double s2) {
+            return max ? s1 > s2 : s1 < s2;
+        }
+
+        private double topSim() {
+            return sims[0];
+        }
+
+        private void push(int node, double sim) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+                sims = Arrays.copyOf(sims, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!above(sim, sims[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                sims[i] = sims[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            sims[i] = sim;
+        }
+
+        private int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            double sim = sims[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(sims[child + 1], sims[child])) {
+                    child++;
+                }
+                if (!above(sims[child], sim)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                sims[i] = sims[child];
+                i = child;
+            }
+            nodes[i] = node;
+            sims[i] = sim;
+            return top;
+        }
+
+        /**
+         * Nodes sorted by decreasing similarity.
+         */
+        private int[] sortedNodes() {
+            Integer[] order = new Integer[size];
+            for (int j = 0; j < size; j++) {
+                order[j] = j;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(sims[b], sims[a]));
+            int[] sorted = new int[size];
+            for (int j = 0; j < size; j++) {
+                sorted[j] = nodes[order[j]];
+            }
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf.rec;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import mf.FactorMatrix;
+import mf.FlatFactorization;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Exact matrix factorization recommender that does not score all the items. The item vectors are visited by
+ * decreasing norm and scored in blocks; before every block, |p_u| |q_i| of its first item bounds the scores of all
+ * the remaining items (Cauchy-Schwarz), and the search stops when the bound is below the score of the last item of
+ * the top-N. Only the order of the items and their norms are stored, the vectors are read from the item factors of
+ * the factorization.
+ * <p>
+ * The scores are computed by the same {@link FactorMatrix#dot} as {@link FlatMFRecommender} and ties are broken in
+ * the same way, so the recommendations are identical to those of FlatMFRecommender and RankSys MFRecommender. The
+ * bound is widened by the worst rounding error of a dot product, so that the stop never loses an item. How many item
+ * vectors were scored for every user can be observed with an IntConsumer.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class NormSortedMFRecommender<U, I> extends AbstractFastRecommender<U, I> {
+
+    private final FlatFactorization<U, I> factorization;
+    private final FactorMatrix p;
+    private final FactorMatrix q;
+    private final int K;
+    private final int blockSize;
+    private final int[] iidxs;
+    private final double[] norms;
+    private final double slack;
+    private final IntConsumer scored;
+
+    /**
+     * Constructor. Blocks of 256 items, the number of scored vectors is not reported.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param factorization matrix factorization, copied into flat matrices if it is not a FlatFactorization
+     */
+    public NormSortedMFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, Factorization<U, I> factorization) {
+        this(uIndex, iIndex, factorization, 256, n -> {
+        });
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param factorization matrix factorization, copied into flat matrices if it is not a FlatFactorization
+     * @param blockSize number of items scored between two checks of the bound
+     * @param scored receives the number of item vectors scored for every recommendation
+     */
+    public NormSortedMFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, Factorization<U, I> factorization, int blockSize, IntConsumer scored) {
+        super(uIndex, iIndex);
+        this.factorization = FlatFactorization.of(factorization);
+        this.p = this.factorization.getUserFactors();
+        this.q = this.factorization.getItemFactors();
+        this.K = q.columns();
+        this.blockSize = blockSize;
+        this.scored = scored;
+
+        int numItems = q.rows();
+        double[] row = new double[K];
+        double[] itemNorms = new double[numItems];
+        for (int iidx = 0; iidx < numItems; iidx++) {
+            q.getRow(iidx, row, 0);
+            itemNorms[iidx] = norm(row);
+        }
+        this.iidxs = IntStream.range(0, numItems).boxed()
+                .sorted((i1, i2) -> Double.compare(itemNorms[i2], itemNorms[i1]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        this.norms = new double[numItems];
+        for (int j = 0; j < numItems; j++) {
+            norms[j] = itemNorms[iidxs[j]];
+        }
+
+        // a computed dot product can exceed the exact one by at most about K ulps of |p_u| |q_i|
+        this.slack = 1 + 2 * (K + 2) * Math.ulp(1.0);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        int numItems = iidxs.length;
+        int capacity = Math.min(maxLength, numItems);
+        IntDoubleTopN topN = new IntDoubleTopN(capacity);
+        double bound = norm(pu) * slack;
+
+        int j0 = 0;
+        for (; j0 < numItems; j0 += blockSize) {
+            if (capacity > 0 && topN.size() == capacity && bound * norms[j0] < topN.peek().v2) {
+                break;
+            }
+            int j1 = Math.min(j0 + blockSize, numItems);
+            for (int j = j0; j < j1; j++) {
+                int iidx = iidxs[j];
+                if (filter.test(iidx)) {
+                    topN.add(iidx, q.dot(iidx, pu));
+                }
+            }
+        }
+        scored.accept(Math.min(j0, numItems));
+        topN.sort();
+
+        List<Tuple2id> items = topN.reverseStream()
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        List<Tuple2id> items = candidates
+                .mapToObj(iidx -> tuple(iidx, q.dot(iidx, pu)))
+                .sorted(comparingDouble(Tuple2id::v2).reversed())
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    private double[] getUserVector(int uidx) {
+        int fuidx = factorization.user2uidx(uidx2user(uidx));
+        if (fuidx < 0) {
+            return null;
+        }
+        double[] pu = new double[p.columns()];
+        p.getRow(fuidx, pu, 0);
+        return pu;
+    }
+
+    private static double norm(double[] v) {
+        return Math.sqrt(Arrays.stream(v).map(x -> x * x).sum());
+    }
+}
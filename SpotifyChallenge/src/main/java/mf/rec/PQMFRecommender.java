@@ -0,0 +1,161 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf.rec;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import mf.FactorMatrix;
+import mf.FloatFactorMatrix;
+import mf.MappedFactorMatrix;
+import mf.ProductQuantizedFactors;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Matrix factorization recommender that scores the items with their product quantized factors. A table of inner
+ * products is computed once per user and every item costs m table lookups.
+ * <p>
+ * With a shortlist, the best items by approximate score are re-ranked with exact item factors, which can be
+ * memory-mapped (see {@link mf.MappedFactorMatrix}) so that only the user factors and the codes stay on the heap.
+ * Without a shortlist no exact item factors are needed and the approximate scores are returned. See
+ * {@link #heapBytes()} and {@link #mappedBytes()} for the footprint of a model.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class PQMFRecommender<U, I> extends AbstractFastRecommender<U, I> {
+
+    private final FactorMatrix p;
+    private final FactorMatrix q;
+    private final ProductQuantizedFactors codes;
+    private final int shortlist;
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param userFactors user factors, one row per user of uIndex
+     * @param codes product quantization of the item factors, one row per item of iIndex
+     * @param itemFactors exact item factors used to re-rank the shortlist, e.g. mapped from a snapshot, null for none
+     * @param shortlist number of items re-ranked with the exact factors, 0 for none
+     */
+    public PQMFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, FactorMatrix userFactors, ProductQuantizedFactors codes, FactorMatrix itemFactors, int shortlist) {
+        super(uIndex, iIndex);
+        if (userFactors.rows() != uIndex.numUsers() || codes.rows() != iIndex.numItems()) {
+            throw new IllegalArgumentException("factors of " + userFactors.rows() + " users and " + codes.rows() + " items, indexes of " + uIndex.numUsers() + " and " + iIndex.numItems());
+        }
+        if (shortlist > 0 && (itemFactors == null || itemFactors.rows() != codes.rows())) {
+            throw new IllegalArgumentException("a shortlist needs the exact factors of the " + codes.rows() + " items");
+        }
+        this.p = userFactors;
+        this.q = shortlist > 0 ? itemFactors : null;
+        this.codes = codes;
+        this.shortlist = shortlist;
+    }
+
+    /**
+     * Memory of the model on the heap: user factors that are not mapped, codes and, with a shortlist, exact item
+     * factors that are not mapped.
+     *
+     * @return number of bytes
+     */
+    public long heapBytes() {
+        return heapBytes(p) + codes.bytes() + (q == null ? 0 : heapBytes(q));
+    }
+
+    /**
+     * Memory-mapped factors read by the model, which the page cache keeps in memory when they are used.
+     *
+     * @return number of bytes
+     */
+    public long mappedBytes() {
+        return mappedBytes(p) + (q == null ? 0 : mappedBytes(q));
+    }
+
+    private static long heapBytes(FactorMatrix m) {
+        return m instanceof MappedFactorMatrix ? 0 : (long) m.rows() * m.columns() * (m instanceof FloatFactorMatrix ? 4 : 8);
+    }
+
+    private static long mappedBytes(FactorMatrix m) {
+        return m instanceof MappedFactorMatrix ? (long) m.rows() * m.columns() * (((MappedFactorMatrix) m).isFloat() ? 4 : 8) : 0;
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        double[] table = codes.table(pu);
+        int numItems = codes.rows();
+        IntDoubleTopN topN = new IntDoubleTopN(Math.min(Math.max(maxLength, shortlist), numItems));
+        for (int iidx = 0; iidx < numItems; iidx++) {
+            if (filter.test(iidx)) {
+                topN.add(iidx, codes.score(iidx, table));
+            }
+        }
+
+        if (shortlist > 0) {
+            IntDoubleTopN exact = new IntDoubleTopN(Math.min(maxLength, numItems));
+            topN.forEach(iv -> exact.add(iv.v1, q.dot(iv.v1, pu)));
+            topN = exact;
+        }
+        topN.sort();
+
+        List<Tuple2id> items = topN.reverseStream()
+                .limit(maxLength)
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
+        double[] pu = getUserVector(uidx);
+        if (pu == null) {
+            return new FastRecommendation(uidx, new ArrayList<>());
+        }
+
+        double[] table = codes.table(pu);
+        List<Tuple2id> items = candidates
+                .mapToObj(iidx -> tuple(iidx, shortlist > 0 ? q.dot(iidx, pu) : codes.score(iidx, table)))
+                .sorted(comparingDouble(Tuple2id::v2).reversed())
+                .collect(toList());
+
+        return new FastRecommendation(uidx, items);
+    }
+
+    private double[] getUserVector(int uidx) {
+        if (uidx < 0) {
+            return null;
+        }
+        double[] pu = new double[p.columns()];
+        p.getRow(uidx, pu, 0);
+        return pu;
+    }
+}
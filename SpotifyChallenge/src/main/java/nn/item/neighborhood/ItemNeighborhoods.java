@@ -3,7 +3,9 @@ package nn.item.neighborhood;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 
 import nn.item.sim.ItemSimilarity;
+import nn.neighborhood.BatchTopKNeighborhood;
 import nn.neighborhood.CachedNeighborhood;
+import nn.neighborhood.PrunedTopKNeighborhood;
 import nn.neighborhood.ThresholdNeighborhood;
 import nn.neighborhood.TopKNeighborhood;
 import org.jooq.lambda.tuple.Tuple2;
@@ -19,6 +21,35 @@ public class ItemNeighborhoods {
         return new ItemNeighborhood<>(similarity, new TopKNeighborhood(similarity.similarity(), k));
     }
 
+    /**
+     * Same neighbors as {@link #topK(ItemSimilarity, int)}, computed for all the items at once by a parallel
+     * sparse matrix product and cached. The similarity must be a set or vector similarity without a cap (see
+     * {@link nn.sim.SetSimilarity#setCap(int, long)}). The neighbors are listed in the order of topK with a dense
+     * similarity; with a map-based one (dense = false) the order differs, so code reading only the first neighbors
+     * of a list, e.g. from a file written by PreComputeItemSims, gets other ones.
+     *
+     * @param <I> type of the items
+     * @param similarity item similarity
+     * @param k maximum size of neighborhood
+     * @return item neighborhood
+     */
+    public static <I> nn.item.neighborhood.ItemNeighborhood<I> batchTopK(ItemSimilarity<I> similarity, int k) {
+        return new ItemNeighborhood<>(similarity, new BatchTopKNeighborhood(similarity.similarity(), k));
+    }
+
+    /**
+     * Same neighborhood as {@link #topK(ItemSimilarity, int)}, computed one item at a time while skipping the items
+     * that cannot be neighbors. The similarity must be one of the cosine or Jaccard similarities, without a cap.
+     *
+     * @param <I> type of the items
+     * @param similarity item similarity
+     * @param k maximum size of neighborhood
+     * @return item neighborhood
+     */
+    public static <I> nn.item.neighborhood.ItemNeighborhood<I> prunedTopK(ItemSimilarity<I> similarity, int k) {
+        return new ItemNeighborhood<>(similarity, new PrunedTopKNeighborhood(similarity.similarity(), k));
+    }
+
     public static <I> nn.item.neighborhood.ItemNeighborhood<I> threshold(ItemSimilarity<I> similarity, double threshold) {
         return new ItemNeighborhood<>(similarity, new ThresholdNeighborhood(similarity.similarity(), threshold));
     }
@@ -2,6 +2,8 @@ package nn.item.sim;
 
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.fast.preference.TransposedPreferenceData;
+import nn.sim.MinHashSimilarity;
+import nn.sim.SetSimilarity;
 import nn.sim.Similarities;
 
 
@@ -23,6 +25,24 @@ public class ItemSimilarities {
         return new ItemSimilarity<>(preferences, Similarities.vectorJaccard(new TransposedPreferenceData<>(preferences), dense));
     }
     
+    /**
+     * Approximate version of a set similarity, e.g. {@link #setJaccard} or {@link #setCosine}, whose similar items
+     * are the candidates of MinHash LSH rescored exactly, see {@link MinHashSimilarity}.
+     *
+     * @param <I> type of the items
+     * @param similarity exact set similarity
+     * @param bands number of bands of the signatures, more bands find more neighbors
+     * @param rows number of MinHash values of every band, more rows find less candidates
+     * @param seed seed of the hash functions
+     * @return approximate item similarity
+     */
+    public static <I> ItemSimilarity<I> minHash(ItemSimilarity<I> similarity, int bands, int rows, long seed) {
+        if (!(similarity.similarity() instanceof SetSimilarity)) {
+            throw new IllegalArgumentException("not a set similarity: " + similarity.similarity().getClass().getName());
+        }
+        return new ItemSimilarity<>(similarity, new MinHashSimilarity((SetSimilarity) similarity.similarity(), bands, rows, seed));
+    }
+
     public static <I> ItemSimilarity<I> logLikelihood(FastPreferenceData<?, I> preferences, boolean dense) {
         return new ItemSimilarity<>(preferences, Similarities.logLikelihood(new TransposedPreferenceData<>(preferences), dense));
     }
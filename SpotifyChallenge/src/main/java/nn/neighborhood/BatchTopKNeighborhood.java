@@ -0,0 +1,74 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.neighborhood;
+
+import nn.sim.Similarity;
+import nn.sim.SimilarityProduct;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static java.util.stream.IntStream.range;
+import static java.util.stream.Stream.empty;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Top-K neighborhood of all the users/items computed at once by {@link SimilarityProduct} and cached. It has the
+ * same neighbors as a {@link TopKNeighborhood} on the same similarity, in the same order only if the similarity is
+ * dense.
+ */
+public class BatchTopKNeighborhood implements Neighborhood {
+
+    private final int[][] idxla;
+    private final double[][] simla;
+
+    /**
+     * Constructor. Rows are processed in blocks of 256.
+     *
+     * @param sim set or vector similarity
+     * @param k maximum size of neighborhood
+     */
+    public BatchTopKNeighborhood(Similarity sim, int k) {
+        this(new SimilarityProduct(sim), k, 256);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param product similarity product
+     * @param k maximum size of neighborhood
+     * @param blockSize number of consecutive users/items processed by a task
+     */
+    public BatchTopKNeighborhood(SimilarityProduct product, int k, int blockSize) {
+        this.idxla = new int[product.numRows()][];
+        this.simla = new double[product.numRows()][];
+
+        product.topK(k, blockSize, (idx, idxs, sims, size) -> {
+            idxla[idx] = Arrays.copyOf(idxs, size);
+            simla[idx] = Arrays.copyOf(sims, size);
+        });
+    }
+
+    @Override
+    public Stream<Tuple2id> getNeighbors(int idx) {
+        if (idx < 0) {
+            return empty();
+        }
+        int[] idxl = idxla[idx];
+        double[] siml = simla[idx];
+        return range(0, idxl.length).mapToObj(i -> tuple(idxl[i], siml[i]));
+    }
+}
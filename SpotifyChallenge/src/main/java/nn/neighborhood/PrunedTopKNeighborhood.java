@@ -0,0 +1,63 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.neighborhood;
+
+import nn.sim.PrunedSimilaritySearch;
+import nn.sim.Similarity;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.stream.Stream;
+
+import static java.util.stream.Stream.empty;
+
+/**
+ * Top-K neighborhood computed by a {@link PrunedSimilaritySearch}, which skips the users/items that cannot be
+ * neighbors. It has the same neighbors as a {@link TopKNeighborhood} on the same similarity, sorted by decreasing
+ * similarity.
+ */
+public class PrunedTopKNeighborhood implements Neighborhood {
+
+    private final PrunedSimilaritySearch search;
+    private final int k;
+
+    /**
+     * Constructor.
+     *
+     * @param sim cosine or Jaccard similarity of {@link nn.sim.Similarities}
+     * @param k maximum size of neighborhood
+     */
+    public PrunedTopKNeighborhood(Similarity sim, int k) {
+        this(new PrunedSimilaritySearch(sim), k);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param search pruned search, whose counts include the searches of this neighborhood
+     * @param k maximum size of neighborhood
+     */
+    public PrunedTopKNeighborhood(PrunedSimilaritySearch search, int k) {
+        this.search = search;
+        this.k = k;
+    }
+
+    @Override
+    public Stream<Tuple2id> getNeighbors(int idx) {
+        if (idx < 0) {
+            return empty();
+        }
+        return search.topK(idx, k);
+    }
+}
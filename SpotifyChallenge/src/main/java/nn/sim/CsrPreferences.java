@@ -0,0 +1,176 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+
+import java.util.stream.IntStream;
+
+/**
+ * Preferences of a {@link SetSimilarity} or {@link VectorSimilarity} copied into compressed sparse row arrays, by
+ * rows (for item similarities, the playlists of every track) and by columns. Every similarity builds them once, on
+ * the first call of {@link #of(Similarity)}, and shares them among {@link SimilarityProduct},
+ * {@link PrunedSimilaritySearch} and {@link MinHashSimilarity}. The columns are only built when first asked for, and
+ * the values and squared norms are only kept for vector similarities. The entries of every row and column are in the
+ * order of the preference data.
+ */
+final class CsrPreferences {
+
+    private final FastPreferenceData<?, ?> data;
+
+    /**
+     * Number of rows, i.e., users or items of the similarity.
+     */
+    final int numRows;
+
+    /**
+     * Number of columns.
+     */
+    final int numCols;
+
+    /**
+     * Start of every row in rowCols and rowVals, with numRows + 1 entries.
+     */
+    final int[] rowOffsets;
+
+    /**
+     * Columns of the rows.
+     */
+    final int[] rowCols;
+
+    /**
+     * Values of the rows, null for set similarities.
+     */
+    final double[] rowVals;
+
+    /**
+     * Squared norms of the rows, null for set similarities.
+     */
+    final double[] norm2;
+
+    private Columns columns;
+
+    /**
+     * Preferences by columns.
+     */
+    static final class Columns {
+
+        /**
+         * Start of every column in rows and vals, with numCols + 1 entries.
+         */
+        final int[] offsets;
+
+        /**
+         * Rows of the columns.
+         */
+        final int[] rows;
+
+        /**
+         * Values of the columns, null for set similarities.
+         */
+        final double[] vals;
+
+        private Columns(int[] offsets, int[] rows, double[] vals) {
+            this.offsets = offsets;
+            this.rows = rows;
+            this.vals = vals;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param norm2 squared norms of the rows of a vector similarity, whose values are kept, null for a set similarity
+     */
+    CsrPreferences(FastPreferenceData<?, ?> data, double[] norm2) {
+        this.data = data;
+        this.numRows = data.numUsers();
+        this.numCols = data.numItems();
+        this.norm2 = norm2;
+
+        this.rowOffsets = new int[numRows + 1];
+        for (int r = 0; r < numRows; r++) {
+            rowOffsets[r + 1] = rowOffsets[r] + data.numItems(r);
+        }
+        this.rowCols = new int[rowOffsets[numRows]];
+        this.rowVals = norm2 == null ? null : new double[rowCols.length];
+        IntStream.range(0, numRows).parallel().forEach(r -> {
+            int[] o = {rowOffsets[r]};
+            data.getUidxPreferences(r).forEach(iv -> {
+                rowCols[o[0]] = iv.v1;
+                if (rowVals != null) {
+                    rowVals[o[0]] = iv.v2;
+                }
+                o[0]++;
+            });
+        });
+    }
+
+    /**
+     * Returns the preferences of a set or vector similarity, built on the first call for that similarity.
+     *
+     * @param similarity set or vector similarity
+     * @return preferences of the similarity
+     * @throws IllegalArgumentException if the similarity is not a set or vector similarity
+     */
+    static CsrPreferences of(Similarity similarity) {
+        if (similarity instanceof SetSimilarity) {
+            return ((SetSimilarity) similarity).csr();
+        } else if (similarity instanceof VectorSimilarity) {
+            return ((VectorSimilarity) similarity).csr();
+        } else {
+            throw new IllegalArgumentException("not a set or vector similarity: " + similarity.getClass().getName());
+        }
+    }
+
+    /**
+     * Number of columns of a row.
+     *
+     * @param r index of the row
+     * @return number of columns
+     */
+    int degree(int r) {
+        return rowOffsets[r + 1] - rowOffsets[r];
+    }
+
+    /**
+     * Returns the preferences by columns, built on the first call.
+     *
+     * @return preferences by columns
+     */
+    synchronized Columns columns() {
+        if (columns == null) {
+            int[] offsets = new int[numCols + 1];
+            for (int c = 0; c < numCols; c++) {
+                offsets[c + 1] = offsets[c] + data.numUsers(c);
+            }
+            int[] rows = new int[offsets[numCols]];
+            double[] vals = norm2 == null ? null : new double[rows.length];
+            IntStream.range(0, numCols).parallel().forEach(c -> {
+                int[] o = {offsets[c]};
+                data.getIidxPreferences(c).forEach(uv -> {
+                    rows[o[0]] = uv.v1;
+                    if (vals != null) {
+                        vals[o[0]] = uv.v2;
+                    }
+                    o[0]++;
+                });
+            });
+            columns = new Columns(offsets, rows, vals);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import java.util.Arrays;
+
+/**
+ * Dense accumulator of intersection sizes or inner products, meant to be kept by a thread and reused for many rows.
+ * It records which indices were touched, so that they can be listed in increasing order and reset without visiting
+ * the whole array.
+ */
+final class DenseAccumulator {
+
+    private final long[] marked;
+    private final int[] touched;
+    private int size;
+
+    /**
+     * Intersection sizes, null for inner products.
+     */
+    final int[] counts;
+
+    /**
+     * Inner products, null for intersection sizes.
+     */
+    final double[] products;
+
+    /**
+     * Constructor.
+     *
+     * @param n number of indices
+     * @param intersections true to count intersections, false to add products
+     */
+    DenseAccumulator(int n, boolean intersections) {
+        this.marked = new long[(n + 63) >>> 6];
+        this.touched = new int[n];
+        this.size = 0;
+        this.counts = intersections ? new int[n] : null;
+        this.products = intersections ? null : new double[n];
+    }
+
+    private void touch(int idx) {
+        long bit = 1L << idx;
+        if ((marked[idx >>> 6] & bit) == 0) {
+            marked[idx >>> 6] |= bit;
+            touched[size++] = idx;
+        }
+    }
+
+    /**
+     * Adds one to the intersection size of an index.
+     *
+     * @param idx index
+     */
+    void increment(int idx) {
+        touch(idx);
+        counts[idx]++;
+    }
+
+    /**
+     * Adds a value to the inner product of an index.
+     *
+     * @param idx index
+     * @param value value
+     */
+    void add(int idx, double value) {
+        touch(idx);
+        products[idx] += value;
+    }
+
+    /**
+     * Sorts the touched indices in increasing order, either by sorting them or, when they are many, by scanning the
+     * bitset of touched indices.
+     *
+     * @return number of touched indices
+     */
+    int sort() {
+        if (size > marked.length / 4) {
+            int t = 0;
+            for (int w = 0; w < marked.length; w++) {
+                for (long bits = marked[w]; bits != 0; bits &= bits - 1) {
+                    touched[t++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                }
+            }
+        } else {
+            Arrays.sort(touched, 0, size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of touched indices.
+     *
+     * @return number of touched indices
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a touched index.
+     *
+     * @param t position in the list of touched indices, in the order they were touched or sorted after {@link #sort()}
+     * @return touched index
+     */
+    int touched(int t) {
+        return touched[t];
+    }
+
+    /**
+     * Resets the touched entries.
+     */
+    void clear() {
+        for (int t = 0; t < size; t++) {
+            int idx = touched[t];
+            marked[idx >>> 6] = 0;
+            if (counts != null) {
+                counts[idx] = 0;
+            } else {
+                products[idx] = 0.0;
+            }
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.IntStream.range;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Approximate version of a {@link SetSimilarity} whose similarElems only returns the candidates found by locality
+ * sensitive hashing (LSH) of MinHash signatures, which are likely to have a high Jaccard similarity.
+ * <p>
+ * Every profile (for item similarities, the playlists of a track) gets a signature of bands * rows MinHash values.
+ * The values of every band are hashed into a bucket key, and two profiles are candidates if they share the bucket of
+ * at least one band. Two profiles with Jaccard similarity s are candidates with probability 1 - (1 - s^rows)^bands:
+ * more bands increase the recall, more rows decrease the number of candidates. The candidates are rescored exactly
+ * by the sim method of the similarity, so the similarities are the same as those of the exact similarity, only some
+ * neighbors are missing.
+ * <p>
+ * The number of searches and of rescored candidates are counted.
+ */
+public class MinHashSimilarity implements Similarity {
+
+    private static final Logger LOG = Logger.getLogger(MinHashSimilarity.class.getName());
+
+    private final SetSimilarity similarity;
+    private final int bands;
+    private final int rows;
+    private final int numRows;
+    private final int numCols;
+    private final int[] rowOffsets;
+    private final int[] rowCols;
+    private final int[][] bucketOf;
+    private final int[][] bucketOffsets;
+    private final int[][] bucketRows;
+    private final ThreadLocal<Workspace> workspaces;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param similarity exact set similarity, e.g. Jaccard or cosine of {@link Similarities}
+     * @param bands number of bands of the signatures
+     * @param rows number of MinHash values of every band
+     * @param seed seed of the hash functions
+     * @throws IllegalArgumentException if the similarity is capped, the candidates are rescored with exact similarities
+     * from the data
+     */
+    public MinHashSimilarity(SetSimilarity similarity, int bands, int rows, long seed) {
+        if (similarity.isCapped()) {
+            throw new IllegalArgumentException("capped similarities are not supported,"
+                    + " the candidates are rescored with exact similarities from the data");
+        }
+        long time0 = System.nanoTime();
+        CsrPreferences csr = CsrPreferences.of(similarity);
+        this.similarity = similarity;
+        this.bands = bands;
+        this.rows = rows;
+        this.numRows = csr.numRows;
+        this.numCols = csr.numCols;
+        this.rowOffsets = csr.rowOffsets;
+        this.rowCols = csr.rowCols;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] hashSeeds = random.longs(bands * rows).toArray();
+
+        this.bucketOf = new int[bands][];
+        this.bucketOffsets = new int[bands][];
+        this.bucketRows = new int[bands][];
+        long[] keys = new long[numRows];
+        for (int b = 0; b < bands; b++) {
+            int b0 = b * rows;
+            IntStream.range(0, numRows).parallel().forEach(r -> keys[r] = key(r, hashSeeds, b0));
+            buckets(b, keys);
+        }
+
+        this.workspaces = ThreadLocal.withInitial(() -> new Workspace(numRows, numCols));
+
+        double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+        LOG.log(Level.INFO, String.format("MinHash LSH of %d rows with %d bands of %d rows in %.2fs", numRows, bands, rows, time1));
+    }
+
+    /**
+     * Bucket key of a band of the signature of a row, hash of its MinHash values.
+     */
+    private long key(int r, long[] hashSeeds, int h0) {
+        long key = hashSeeds[h0];
+        for (int h = h0; h < h0 + rows; h++) {
+            long min = Long.MAX_VALUE;
+            for (int o = rowOffsets[r]; o < rowOffsets[r + 1]; o++) {
+                min = Math.min(min, mix(hashSeeds[h] ^ (rowCols[o] * 0x9E3779B97F4A7C15L)));
+            }
+            key = mix(key * 31 + min);
+        }
+        return key;
+    }
+
+    /**
+     * Groups the rows with the same key of a band. Rows alone in their bucket, or without preferences, get no bucket.
+     */
+    private void buckets(int b, long[] keys) {
+        int[] order = IntStream.range(0, numRows).filter(r -> rowOffsets[r + 1] > rowOffsets[r]).toArray();
+        IntArrays.parallelQuickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int r1, int r2) {
+                int c = Long.compare(keys[r1], keys[r2]);
+                return c != 0 ? c : Integer.compare(r1, r2);
+            }
+        });
+
+        // ends of the runs of equal keys, the runs of two or more rows are the buckets
+        int[] ends = new int[order.length];
+        int numRuns = 0;
+        int numBuckets = 0;
+        int numMembers = 0;
+        for (int i = 0; i < order.length; ) {
+            int j = i + 1;
+            while (j < order.length && keys[order[j]] == keys[order[i]]) {
+                j++;
+            }
+            if (j - i > 1) {
+                numBuckets++;
+                numMembers += j - i;
+            }
+            ends[numRuns++] = j;
+            i = j;
+        }
+
+        int[] of = new int[numRows];
+        Arrays.fill(of, -1);
+        int[] offsets = new int[numBuckets + 1];
+        int[] members = new int[numMembers];
+        for (int run = 0, i = 0, bucket = 0; run < numRuns; i = ends[run++]) {
+            if (ends[run] - i > 1) {
+                int o = offsets[bucket];
+                for (int t = i; t < ends[run]; t++) {
+                    of[order[t]] = bucket;
+                    members[o++] = order[t];
+                }
+                offsets[++bucket] = o;
+            }
+        }
+
+        bucketOf[b] = of;
+        bucketOffsets[b] = offsets;
+        bucketRows[b] = members;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    @Override
+    public IntToDoubleFunction similarity(int idx1) {
+        return similarity.similarity(idx1);
+    }
+
+    /**
+     * Returns the candidates of a user/item found by LSH, with their exact similarity, in increasing index order.
+     *
+     * @param idx1 index of user/item
+     * @return stream of index-similarity pairs
+     */
+    @Override
+    public Stream<Tuple2id> similarElems(int idx1) {
+        if (similarity.isCapped()) {
+            throw new IllegalStateException("the similarity has been capped");
+        }
+        int na = rowOffsets[idx1 + 1] - rowOffsets[idx1];
+        Workspace ws = workspaces.get();
+        DenseAccumulator found = ws.found;
+        for (int b = 0; b < bands; b++) {
+            int bucket = bucketOf[b][idx1];
+            if (bucket >= 0) {
+                for (int o = bucketOffsets[b][bucket]; o < bucketOffsets[b][bucket + 1]; o++) {
+                    found.increment(bucketRows[b][o]);
+                }
+            }
+        }
+        int touched = found.sort();
+
+        long[] marked = ws.marked;
+        for (int o = rowOffsets[idx1]; o < rowOffsets[idx1 + 1]; o++) {
+            marked[rowCols[o] >>> 6] |= 1L << rowCols[o];
+        }
+        int[] idxs = new int[touched];
+        double[] sims = new double[touched];
+        int n = 0;
+        for (int t = 0; t < touched; t++) {
+            int idx2 = found.touched(t);
+            if (idx2 == idx1) {
+                continue;
+            }
+            int coo = 0;
+            for (int o = rowOffsets[idx2]; o < rowOffsets[idx2 + 1]; o++) {
+                coo += (int) (marked[rowCols[o] >>> 6] >>> rowCols[o]) & 1;
+            }
+            if (coo > 0) {
+                idxs[n] = idx2;
+                sims[n] = similarity.sim(coo, na, rowOffsets[idx2 + 1] - rowOffsets[idx2]);
+                n++;
+            }
+        }
+        for (int o = rowOffsets[idx1]; o < rowOffsets[idx1 + 1]; o++) {
+            marked[rowCols[o] >>> 6] = 0;
+        }
+        found.clear();
+
+        queries.increment();
+        candidates.add(touched);
+
+        int size = n;
+        return range(0, size).mapToObj(i -> tuple(idxs[i], sims[i]));
+    }
+
+    /**
+     * Returns the number of calls of similarElems so far.
+     *
+     * @return number of searches
+     */
+    public long numQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * Returns the number of candidates rescored by all the calls of similarElems so far, including the row itself.
+     *
+     * @return number of rescored candidates
+     */
+    public long numCandidates() {
+        return candidates.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bands of %d rows, %.1f candidates per search", bands, rows,
+                numCandidates() / (double) Math.max(1, numQueries()));
+    }
+
+    /**
+     * Candidates and marked columns of a worker thread.
+     */
+    private static final class Workspace {
+
+        private final DenseAccumulator found;
+        private final long[] marked;
+
+        private Workspace(int numRows, int numCols) {
+            this.found = new DenseAccumulator(numRows, true);
+            this.marked = new long[(numCols + 63) >>> 6];
+        }
+    }
+}
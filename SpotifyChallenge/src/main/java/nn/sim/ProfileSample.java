@@ -0,0 +1,75 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Uniform samples of the preferences of the users/items with long profiles, used by the capped accumulation of
+ * {@link SetSimilarity} and {@link VectorSimilarity}.
+ */
+final class ProfileSample {
+
+    private ProfileSample() {
+    }
+
+    /**
+     * Random generator of the sample of a user/item, which only depends on the seed and the index.
+     *
+     * @param seed seed of the similarity
+     * @param idx index of the user/item
+     * @return random generator
+     */
+    static SplittableRandom random(long seed, int idx) {
+        return new SplittableRandom(seed + idx * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Chooses m different positions of [0, n) uniformly at random.
+     *
+     * @param n number of positions
+     * @param m size of the sample
+     * @param random random generator
+     * @return sampled positions, in increasing order
+     */
+    static int[] positions(int n, int m, SplittableRandom random) {
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        for (int i = 0; i < m; i++) {
+            int j = i + random.nextInt(n - i);
+            int p = positions[j];
+            positions[j] = positions[i];
+            positions[i] = p;
+        }
+        int[] sample = Arrays.copyOf(positions, m);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * Rounds a non-negative estimate up or down at random, so that the expected value of the result is the estimate.
+     *
+     * @param estimate estimate
+     * @param random random generator
+     * @return rounded estimate
+     */
+    static int round(double estimate, SplittableRandom random) {
+        int floor = (int) estimate;
+        return random.nextDouble() < estimate - floor ? floor + 1 : floor;
+    }
+}
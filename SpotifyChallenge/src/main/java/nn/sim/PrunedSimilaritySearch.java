@@ -0,0 +1,326 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Exact top-k search of a {@link SetSimilarity} or {@link VectorSimilarity} that skips the candidates that cannot
+ * enter the top-k, for the similarities with an upper bound that only depends on the sizes of the profiles (cosine
+ * and Jaccard in {@link Similarities}). Vector similarities are only supported on binary preferences, where the
+ * squared norms are the sizes of the profiles.
+ * <p>
+ * The intersections of a row are accumulated through the columns of its profile (for item similarities, the playlists
+ * of the track), whose rows are sorted by degree in a copy of the columns of the {@link CsrPreferences} shared with the
+ * other searches of the similarity. The bound is highest for the candidates with the same degree as the row and
+ * decreases towards both ends, so the candidates whose bound reaches a threshold are a contiguous range of every
+ * column, found by binary search. The range starts around the degree of the row and is widened as the threshold is
+ * lowered, geometrically while there are less than k candidates and then to the k-th best similarity found, until that
+ * similarity is at least the threshold: the intersections of all the candidates inside the range are then complete, and
+ * those outside can only have lower similarities.
+ * <p>
+ * The similarities are computed by the sim method of the similarity with the same arguments as similarElems, so the
+ * neighbors and similarities are exactly those of TopKNeighborhood. They are returned by decreasing similarity. The
+ * numbers of visited column entries and scored candidates are counted for all the searches.
+ */
+public class PrunedSimilaritySearch {
+
+    private static final double FIRST_THRESHOLD = 0.5;
+    private static final double THRESHOLD_DECAY = 0.25;
+    private static final double MIN_THRESHOLD = 0.001;
+
+    private final Similarity similarity;
+    private final boolean set;
+    private final int numRows;
+    private final int[] rowOffsets;
+    private final int[] rowCols;
+    private final int[] colOffsets;
+    private final int[] colRows;
+    private final int[] colDegrees;
+    private final double[] norm2;
+    private final ThreadLocal<DenseAccumulator> accumulators;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder visited = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param similarity cosine or Jaccard set or vector similarity
+     * @throws IllegalArgumentException if the similarity is capped (see {@link SetSimilarity#setCap(int, long)}), the
+     * searches compute exact similarities from the data, if it has no upper bound or, for vector similarities, if the
+     * preferences are not binary
+     */
+    public PrunedSimilaritySearch(Similarity similarity) {
+        if (Similarities.isCapped(similarity)) {
+            throw new IllegalArgumentException("capped similarities are not supported,"
+                    + " the searches compute exact similarities from the data");
+        }
+        CsrPreferences csr = CsrPreferences.of(similarity);
+        this.set = similarity instanceof SetSimilarity;
+        if (!set) {
+            for (double v : csr.rowVals) {
+                if (v != 1.0) {
+                    throw new IllegalArgumentException("vector similarities are only pruned on binary preferences");
+                }
+            }
+        }
+        this.similarity = similarity;
+        if (Double.isInfinite(upperBound(1, 2))) {
+            throw new IllegalArgumentException("no upper bound for " + similarity.getClass().getName());
+        }
+        this.numRows = csr.numRows;
+        int numCols = csr.numCols;
+        this.rowOffsets = csr.rowOffsets;
+        this.rowCols = csr.rowCols;
+        this.norm2 = csr.norm2;
+
+        // rows by increasing degree, and then index, appended to the columns in that order
+        int max = 0;
+        for (int r = 0; r < numRows; r++) {
+            max = Math.max(max, degree(r));
+        }
+        int[] byDegree = new int[max + 2];
+        for (int r = 0; r < numRows; r++) {
+            byDegree[degree(r) + 1]++;
+        }
+        for (int d = 0; d <= max; d++) {
+            byDegree[d + 1] += byDegree[d];
+        }
+        int[] order = new int[numRows];
+        for (int r = 0; r < numRows; r++) {
+            order[byDegree[degree(r)]++] = r;
+        }
+
+        this.colOffsets = csr.columns().offsets;
+        this.colRows = new int[colOffsets[numCols]];
+        this.colDegrees = new int[colRows.length];
+        int[] next = new int[numCols];
+        System.arraycopy(colOffsets, 0, next, 0, numCols);
+        for (int r : order) {
+            for (int o = rowOffsets[r]; o < rowOffsets[r + 1]; o++) {
+                int p = next[rowCols[o]]++;
+                colRows[p] = r;
+                colDegrees[p] = degree(r);
+            }
+        }
+
+        this.accumulators = ThreadLocal.withInitial(() -> new DenseAccumulator(numRows, true));
+    }
+
+    private int degree(int r) {
+        return rowOffsets[r + 1] - rowOffsets[r];
+    }
+
+    private double upperBound(int na, int nb) {
+        if (set) {
+            return ((SetSimilarity) similarity).upperBound(na, nb);
+        } else {
+            return ((VectorSimilarity) similarity).upperBound(na, nb);
+        }
+    }
+
+    private double sim(int r1, int r2, int intersectionSize) {
+        if (set) {
+            return ((SetSimilarity) similarity).sim(intersectionSize, degree(r1), degree(r2));
+        } else {
+            return ((VectorSimilarity) similarity).sim(intersectionSize, norm2[r1], norm2[r2]);
+        }
+    }
+
+    /**
+     * Returns the number of rows, i.e., users or items of the similarity.
+     *
+     * @return number of rows
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * Computes the k most similar rows of a row. It can be called from several threads at the same time.
+     *
+     * @param idx index of the row
+     * @param k maximum number of neighbors
+     * @return neighbors and similarities, by decreasing similarity
+     * @throws IllegalStateException if the similarity has been capped after the constructor
+     */
+    public Stream<Tuple2id> topK(int idx, int k) {
+        if (Similarities.isCapped(similarity)) {
+            throw new IllegalStateException("the similarity has been capped");
+        }
+        int na = degree(idx);
+        IntDoubleTopN topN = new IntDoubleTopN(k);
+        if (na == 0 || k <= 0) {
+            return topN.stream();
+        }
+        DenseAccumulator intersections = accumulators.get();
+        int r0 = rowOffsets[idx];
+
+        // [lo[j], hi[j]) is the range of column j of the row already accumulated, empty at the degree of the row
+        int[] lo = new int[na];
+        int[] hi = new int[na];
+        long rowPairs = 0;
+        for (int j = 0; j < na; j++) {
+            int c = rowCols[r0 + j];
+            lo[j] = hi[j] = firstDegree(colOffsets[c], colOffsets[c + 1], na);
+            rowPairs += colOffsets[c + 1] - colOffsets[c];
+        }
+
+        long rowVisited = 0;
+        int scored = 0;
+        double threshold = FIRST_THRESHOLD;
+        while (true) {
+            for (int j = 0; j < na; j++) {
+                int c = rowCols[r0 + j];
+                int newLo = firstAbove(colOffsets[c], lo[j], na, threshold);
+                int newHi = firstBelow(hi[j], colOffsets[c + 1], na, threshold);
+                for (int p = newLo; p < lo[j]; p++) {
+                    intersections.increment(colRows[p]);
+                }
+                for (int p = hi[j]; p < newHi; p++) {
+                    intersections.increment(colRows[p]);
+                }
+                rowVisited += (lo[j] - newLo) + (newHi - hi[j]);
+                lo[j] = newLo;
+                hi[j] = newHi;
+            }
+
+            // the candidates touched in this round have their bound above the threshold, so they are complete
+            int touched = intersections.size();
+            for (int t = scored; t < touched; t++) {
+                int r2 = intersections.touched(t);
+                if (r2 != idx) {
+                    topN.add(r2, sim(idx, r2, intersections.counts[r2]));
+                }
+            }
+            scored = touched;
+
+            if (threshold == Double.NEGATIVE_INFINITY || (topN.size() == k && topN.peek().v2 >= threshold)) {
+                break;
+            }
+            if (topN.size() == k) {
+                threshold = topN.peek().v2;
+            } else {
+                threshold = threshold * THRESHOLD_DECAY < MIN_THRESHOLD ? Double.NEGATIVE_INFINITY : threshold * THRESHOLD_DECAY;
+            }
+        }
+        intersections.clear();
+
+        queries.increment();
+        pairs.add(rowPairs);
+        visited.add(rowVisited);
+        candidates.add(scored);
+
+        topN.sort();
+        return topN.reverseStream();
+    }
+
+    /**
+     * First position of [p0, p1) with degree at least d.
+     */
+    private int firstDegree(int p0, int p1, int d) {
+        while (p0 < p1) {
+            int m = (p0 + p1) >>> 1;
+            if (colDegrees[m] < d) {
+                p0 = m + 1;
+            } else {
+                p1 = m;
+            }
+        }
+        return p0;
+    }
+
+    /**
+     * First position of [p0, p1), with degrees below na, whose bound is at least the threshold.
+     */
+    private int firstAbove(int p0, int p1, int na, double threshold) {
+        while (p0 < p1) {
+            int m = (p0 + p1) >>> 1;
+            if (upperBound(na, colDegrees[m]) < threshold) {
+                p0 = m + 1;
+            } else {
+                p1 = m;
+            }
+        }
+        return p0;
+    }
+
+    /**
+     * First position of [p0, p1), with degrees at least na, whose bound is below the threshold.
+     */
+    private int firstBelow(int p0, int p1, int na, double threshold) {
+        while (p0 < p1) {
+            int m = (p0 + p1) >>> 1;
+            if (upperBound(na, colDegrees[m]) >= threshold) {
+                p0 = m + 1;
+            } else {
+                p1 = m;
+            }
+        }
+        return p0;
+    }
+
+    /**
+     * Returns the number of searches so far.
+     *
+     * @return number of searches
+     */
+    public long numQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * Returns the number of column entries that an unpruned search would have visited, for all the searches so far.
+     *
+     * @return number of column entries of the searched rows
+     */
+    public long numPairs() {
+        return pairs.sum();
+    }
+
+    /**
+     * Returns the number of column entries visited by all the searches so far.
+     *
+     * @return number of visited column entries
+     */
+    public long numVisited() {
+        return visited.sum();
+    }
+
+    /**
+     * Returns the number of candidates whose similarity was computed by all the searches so far, including the row
+     * itself.
+     *
+     * @return number of scored candidates
+     */
+    public long numCandidates() {
+        return candidates.sum();
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, numQueries());
+        return String.format("%d searches, %.1f candidates and %.1f of %.1f column entries per search (%.1f%%)",
+                numQueries(), numCandidates() / (double) n, numVisited() / (double) n, numPairs() / (double) n,
+                100.0 * numVisited() / Math.max(1, numPairs()));
+    }
+}
@@ -14,6 +14,7 @@ import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
 import it.unimi.dsi.fastutil.ints.*;
 import org.ranksys.core.util.tuples.Tuple2id;
 
+import java.util.SplittableRandom;
 import java.util.function.IntToDoubleFunction;
 import java.util.stream.Stream;
 
@@ -37,6 +38,26 @@ public abstract class SetSimilarity implements Similarity {
      */
     protected final boolean dense;
 
+    /**
+     * Per-thread accumulators of the intersections when dense is true, reused by all the calls of similarElems.
+     */
+    private final ThreadLocal<DenseAccumulator> accumulators;
+
+    /**
+     * Maximum number of preferences of a user/item iterated by similarElems, see {@link #setCap(int, long)}.
+     */
+    private int cap = Integer.MAX_VALUE;
+
+    /**
+     * Seed of the samples of the users/items with more than cap preferences.
+     */
+    private long seed = 0L;
+
+    /**
+     * Compressed sparse rows of data, see {@link #csr()}.
+     */
+    private CsrPreferences csr;
+
     /**
      * Constructor.
      *
@@ -46,6 +67,7 @@ public abstract class SetSimilarity implements Similarity {
     public SetSimilarity(FastPreferenceData<?, ?> data, boolean dense) {
         this.data = data;
         this.dense = dense;
+        this.accumulators = ThreadLocal.withInitial(() -> new DenseAccumulator(data.numUsers(), true));
     }
 
     @Override
@@ -78,18 +100,12 @@ public abstract class SetSimilarity implements Similarity {
         return intersectionMap;
     }
 
-    private int[] getIntersectionArray(int idx1) {
-        int[] intersectionMap = new int[data.numUsers()];
-
+    private void getIntersectionArray(int idx1, DenseAccumulator intersections) {
         data.getUidxPreferences(idx1).forEach(ip -> {
             data.getIidxPreferences(ip.v1).forEach(up -> {
-                intersectionMap[up.v1]++;
+                intersections.increment(up.v1);
             });
         });
-
-        intersectionMap[idx1] = 0;
-
-        return intersectionMap;
     }
 
     private Int2IntMap getFasterIntersectionMap(int uidx) {
@@ -109,32 +125,155 @@ public abstract class SetSimilarity implements Similarity {
         return intersectionMap;
     }
 
-    private int[] getFasterIntersectionArray(int uidx) {
-        int[] intersectionMap = new int[data.numUsers()];
-
+    private void getFasterIntersectionArray(int uidx, DenseAccumulator intersections) {
         IntIterator iidxs = data.getUidxIidxs(uidx);
         while (iidxs.hasNext()) {
             IntIterator vidxs = data.getIidxUidxs(iidxs.nextInt());
             while (vidxs.hasNext()) {
-                intersectionMap[vidxs.nextInt()]++;
+                intersections.increment(vidxs.nextInt());
             }
         }
+    }
+
+    /**
+     * Similarities with the users/items whose intersection with idx1 is in the accumulator, in increasing index
+     * order. The accumulator is reset before returning.
+     */
+    private Stream<Tuple2id> similarElems(int idx1, int na, DenseAccumulator intersections) {
+        int touched = intersections.sort();
+        int[] idxs = new int[touched];
+        double[] sims = new double[touched];
+        int n = 0;
+        for (int t = 0; t < touched; t++) {
+            int idx2 = intersections.touched(t);
+            if (idx2 != idx1) {
+                idxs[n] = idx2;
+                sims[n] = sim(intersections.counts[idx2], na, data.numItems(idx2));
+                n++;
+            }
+        }
+        intersections.clear();
 
-        intersectionMap[uidx] = 0;
+        return range(0, n).mapToObj(i -> tuple(idxs[i], sims[i]));
+    }
 
-        return intersectionMap;
+    /**
+     * Caps the number of preferences of a user/item that similarElems iterates, which bounds its cost for the
+     * users/items with very long profiles (for item similarities, the most popular tracks). For those, a uniform
+     * sample of cap preferences is iterated and the intersection sizes are scaled by na / cap and rounded up or down
+     * at random, which alone would be unbiased. They are then clamped to the size of the smaller set, which cuts the
+     * high estimates and not the low ones, so the intersections with users/items with few preferences are
+     * underestimated on average. Their similarities are then approximate, and only the users/items intersecting the
+     * sample are returned. It must be called before computing similarities, and only similarElems honors it (see
+     * {@link #isCapped()}).
+     *
+     * @param cap maximum number of preferences, Integer.MAX_VALUE (the default) for exact similarities
+     * @param seed seed of the samples, which only depend on it and the index of the user/item
+     * @throws IllegalArgumentException if cap is less than 1
+     */
+    public void setCap(int cap, long seed) {
+        if (cap < 1) {
+            throw new IllegalArgumentException("cap must be positive, not " + cap);
+        }
+        this.cap = cap;
+        this.seed = seed;
+    }
+
+    /**
+     * Whether {@link #setCap(int, long)} limits the preferences iterated by similarElems. Searches that read the
+     * preferences of data directly compute exact similarities and reject capped similarities.
+     *
+     * @return true if the cap is less than Integer.MAX_VALUE
+     */
+    public boolean isCapped() {
+        return cap != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the preferences of data as compressed sparse rows, built on the first call and then shared by the
+     * searches of this package.
+     *
+     * @return preferences as compressed sparse rows
+     */
+    synchronized CsrPreferences csr() {
+        if (csr == null) {
+            csr = new CsrPreferences(data, null);
+        }
+        return csr;
+    }
+
+    /**
+     * Similarities of a user/item with more than cap preferences, estimated from a sample of them.
+     */
+    private Stream<Tuple2id> sampledElems(int idx1, int na) {
+        SplittableRandom random = ProfileSample.random(seed, idx1);
+        int[] iidxs = new int[na];
+        IntIterator it = data.getUidxIidxs(idx1);
+        for (int j = 0; it.hasNext(); j++) {
+            iidxs[j] = it.nextInt();
+        }
+
+        DenseAccumulator intersections = dense ? accumulators.get() : null;
+        Int2IntOpenHashMap intersectionMap = dense ? null : new Int2IntOpenHashMap();
+        for (int j : ProfileSample.positions(na, cap, random)) {
+            IntIterator vidxs = data.getIidxUidxs(iidxs[j]);
+            while (vidxs.hasNext()) {
+                if (dense) {
+                    intersections.increment(vidxs.nextInt());
+                } else {
+                    intersectionMap.addTo(vidxs.nextInt(), 1);
+                }
+            }
+        }
+
+        int touched = dense ? intersections.sort() : intersectionMap.size();
+        int[] idxs = new int[touched];
+        int[] coos = new int[touched];
+        if (dense) {
+            for (int t = 0; t < touched; t++) {
+                idxs[t] = intersections.touched(t);
+                coos[t] = intersections.counts[idxs[t]];
+            }
+            intersections.clear();
+        } else {
+            int t = 0;
+            for (Int2IntMap.Entry e : intersectionMap.int2IntEntrySet()) {
+                idxs[t] = e.getIntKey();
+                coos[t] = e.getIntValue();
+                t++;
+            }
+        }
+
+        double scale = na / (double) cap;
+        double[] sims = new double[touched];
+        int n = 0;
+        for (int t = 0; t < touched; t++) {
+            int idx2 = idxs[t];
+            if (idx2 != idx1) {
+                int nb = data.numItems(idx2);
+                int coo = Math.min(ProfileSample.round(coos[t] * scale, random), Math.min(na, nb));
+                idxs[n] = idx2;
+                sims[n] = sim(coo, na, nb);
+                n++;
+            }
+        }
+
+        int size = n;
+        return range(0, size).mapToObj(i -> tuple(idxs[i], sims[i]));
     }
 
     @Override
     public Stream<Tuple2id> similarElems(int idx1) {
         int na = data.numItems(idx1);
+        if (na > cap) {
+            return sampledElems(idx1, na);
+        }
 
         if (data.useIteratorsPreferentially()) {
             if (dense) {
-                int[] intersectionMap = getFasterIntersectionArray(idx1);
-                return range(0, intersectionMap.length)
-                        .filter(i -> intersectionMap[i] != 0)
-                        .mapToObj(i -> tuple(i, sim(intersectionMap[i], na, data.numItems(i))));
+                DenseAccumulator intersections = accumulators.get();
+                getFasterIntersectionArray(idx1, intersections);
+                return similarElems(idx1, na, intersections);
             } else {
                 return getFasterIntersectionMap(idx1).int2IntEntrySet().stream()
                         .map(e -> {
@@ -146,10 +285,9 @@ public abstract class SetSimilarity implements Similarity {
             }
         } else {
             if (dense) {
-                int[] intersectionMap = getIntersectionArray(idx1);
-                return range(0, intersectionMap.length)
-                        .filter(i -> intersectionMap[i] != 0)
-                        .mapToObj(i -> tuple(i, sim(intersectionMap[i], na, data.numItems(i))));
+                DenseAccumulator intersections = accumulators.get();
+                getIntersectionArray(idx1, intersections);
+                return similarElems(idx1, na, intersections);
             } else {
                 return getIntersectionMap(idx1).int2IntEntrySet().stream()
                         .map(e -> {
@@ -171,4 +309,17 @@ public abstract class SetSimilarity implements Similarity {
      * @return similarity value
      */
     protected abstract double sim(int intersectionSize, int na, int nb);
+
+    /**
+     * Upper bound of the similarity of two sets of sizes na and nb, whatever their intersection, used by
+     * {@link PrunedSimilaritySearch} to skip candidates. For a given na it must not decrease with nb up to na and
+     * not increase after. The default is no bound.
+     *
+     * @param na size of the first set
+     * @param nb size of the second set
+     * @return upper bound of the similarity value
+     */
+    protected double upperBound(int na, int nb) {
+        return Double.POSITIVE_INFINITY;
+    }
 }
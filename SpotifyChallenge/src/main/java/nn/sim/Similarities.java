@@ -9,6 +9,7 @@ package nn.sim;
 
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 
+import static java.lang.Math.min;
 import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
 import static org.apache.mahout.math.stats.LogLikelihood.logLikelihoodRatio;
@@ -25,6 +26,11 @@ public class Similarities {
             protected double sim(int intersectionSize, int na, int nb) {
                 return intersectionSize / (pow(na, alpha) * pow(nb, 1.0 - alpha));
             }
+
+            @Override
+            protected double upperBound(int na, int nb) {
+                return sim(min(na, nb), na, nb);
+            }
         };
     }
 
@@ -34,6 +40,11 @@ public class Similarities {
             protected double sim(int intersectionSize, int na, int nb) {
                 return intersectionSize / (double) (na + nb - intersectionSize);
             }
+
+            @Override
+            protected double upperBound(int na, int nb) {
+                return sim(min(na, nb), na, nb);
+            }
         };
     }
 
@@ -43,6 +54,11 @@ public class Similarities {
             protected double sim(double product, double norm2A, double norm2B) {
                 return product / sqrt(norm2A * norm2B);
             }
+
+            @Override
+            protected double upperBound(double norm2A, double norm2B) {
+                return sim(min(norm2A, norm2B), norm2A, norm2B);
+            }
         };
     }
 
@@ -52,9 +68,26 @@ public class Similarities {
             protected double sim(double product, double norm2A, double norm2B) {
                 return product / (norm2A + norm2B - product);
             }
+
+            @Override
+            protected double upperBound(double norm2A, double norm2B) {
+                return sim(min(norm2A, norm2B), norm2A, norm2B);
+            }
         };
     }
 
+    /**
+     * Tells whether a set or vector similarity has a cap (see {@link SetSimilarity#setCap(int, long)}). The searches
+     * of this package that read the preferences directly compute exact similarities, and reject capped ones.
+     *
+     * @param similarity similarity
+     * @return true if the similarity is a capped set or vector similarity
+     */
+    static boolean isCapped(Similarity similarity) {
+        return similarity instanceof SetSimilarity ? ((SetSimilarity) similarity).isCapped()
+                : similarity instanceof VectorSimilarity && ((VectorSimilarity) similarity).isCapped();
+    }
+
     public static SetSimilarity logLikelihood(FastPreferenceData<?, ?> preferences, boolean dense) {
         return new SetSimilarity(preferences, dense) {
             @Override
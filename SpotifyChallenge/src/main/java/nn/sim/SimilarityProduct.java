@@ -0,0 +1,190 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package nn.sim;
+
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * All-pairs similarities of a {@link SetSimilarity} or {@link VectorSimilarity} computed as a sparse matrix product
+ * X X^T, where X is the preference matrix of the similarity (for item similarities, the item-playlist matrix).
+ * <p>
+ * X and its transpose are copied once into compressed sparse row arrays, shared with the other searches of the
+ * similarity. The rows are processed in parallel blocks and every worker thread accumulates the products (or
+ * intersection sizes) of a row in a {@link DenseAccumulator}, which only resets the rows it touched. The values are
+ * then normalized by the sim method of the similarity and the top-k are kept on the fly.
+ * <p>
+ * The products are added in the same order as similarElems and normalized by the same method, and the candidates
+ * enter an IntDoubleTopN in increasing index order as with dense arrays, so the neighbors and similarities are
+ * exactly those of TopKNeighborhood, in the same order as for a dense similarity.
+ */
+public class SimilarityProduct {
+
+    private static final Logger LOG = Logger.getLogger(SimilarityProduct.class.getName());
+
+    private final Similarity similarity;
+    private final boolean set;
+    private final int numRows;
+    private final int[] rowOffsets;
+    private final int[] rowCols;
+    private final double[] rowVals;
+    private final int[] colOffsets;
+    private final int[] colRows;
+    private final double[] colVals;
+    private final double[] norm2;
+
+    /**
+     * Receives the neighbors of every row. The arrays are reused after the call returns.
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+
+        /**
+         * Neighbors of a row.
+         *
+         * @param idx index of the row
+         * @param idxs indices of the neighbors
+         * @param sims similarities of the neighbors
+         * @param size number of neighbors
+         */
+        void accept(int idx, int[] idxs, double[] sims, int size);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param similarity set or vector similarity
+     * @throws IllegalArgumentException if the similarity is capped, the products compute exact similarities from the
+     * data
+     */
+    public SimilarityProduct(Similarity similarity) {
+        if (Similarities.isCapped(similarity)) {
+            throw new IllegalArgumentException("capped similarities are not supported,"
+                    + " the products compute exact similarities from the data");
+        }
+        CsrPreferences csr = CsrPreferences.of(similarity);
+        CsrPreferences.Columns columns = csr.columns();
+        this.similarity = similarity;
+        this.set = similarity instanceof SetSimilarity;
+        this.numRows = csr.numRows;
+        this.rowOffsets = csr.rowOffsets;
+        this.rowCols = csr.rowCols;
+        this.rowVals = csr.rowVals;
+        this.colOffsets = columns.offsets;
+        this.colRows = columns.rows;
+        this.colVals = columns.vals;
+        this.norm2 = csr.norm2;
+    }
+
+    /**
+     * Returns the number of rows, i.e., users or items of the similarity.
+     *
+     * @return number of rows
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * Computes the k most similar rows of every row.
+     *
+     * @param k maximum number of neighbors
+     * @param blockSize number of consecutive rows processed by a task
+     * @param consumer receives the neighbors of every row, from several threads at the same time
+     * @throws IllegalStateException if the similarity has been capped after the constructor
+     */
+    public void topK(int k, int blockSize, RowConsumer consumer) {
+        if (Similarities.isCapped(similarity)) {
+            throw new IllegalStateException("the similarity has been capped");
+        }
+        long time0 = System.nanoTime();
+        int numBlocks = (numRows + blockSize - 1) / blockSize;
+        ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(() -> new Accumulator(numRows, k));
+
+        IntStream.range(0, numBlocks).parallel().forEach(block -> {
+            Accumulator acc = accumulators.get();
+            int r1 = Math.min(numRows, (block + 1) * blockSize);
+            for (int r = block * blockSize; r < r1; r++) {
+                row(r, k, acc);
+                consumer.accept(r, acc.idxs, acc.sims, acc.size);
+            }
+        });
+
+        double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+        LOG.log(Level.INFO, String.format("top-%d of %d rows in %.2fs (%.0f rows/s)", k, numRows, time1, numRows / time1));
+    }
+
+    private void row(int r, int k, Accumulator acc) {
+        DenseAccumulator dense = acc.dense;
+        for (int o = rowOffsets[r]; o < rowOffsets[r + 1]; o++) {
+            int c = rowCols[o];
+            if (set) {
+                for (int p = colOffsets[c]; p < colOffsets[c + 1]; p++) {
+                    dense.increment(colRows[p]);
+                }
+            } else {
+                double v = rowVals[o];
+                for (int p = colOffsets[c]; p < colOffsets[c + 1]; p++) {
+                    dense.add(colRows[p], v * colVals[p]);
+                }
+            }
+        }
+        int touched = dense.sort();
+
+        IntDoubleTopN topN = new IntDoubleTopN(k);
+        int na = rowOffsets[r + 1] - rowOffsets[r];
+        for (int t = 0; t < touched; t++) {
+            int r2 = dense.touched(t);
+            if (r2 == r) {
+                continue;
+            }
+            if (set) {
+                topN.add(r2, ((SetSimilarity) similarity).sim(dense.counts[r2], na, rowOffsets[r2 + 1] - rowOffsets[r2]));
+            } else if (dense.products[r2] != 0.0) {
+                topN.add(r2, ((VectorSimilarity) similarity).sim(dense.products[r2], norm2[r], norm2[r2]));
+            }
+        }
+        dense.clear();
+
+        acc.size = 0;
+        for (Tuple2id is : (Iterable<Tuple2id>) topN.stream()::iterator) {
+            acc.idxs[acc.size] = is.v1;
+            acc.sims[acc.size] = is.v2;
+            acc.size++;
+        }
+    }
+
+    /**
+     * Dense accumulator and top-k buffers of a worker thread.
+     */
+    private final class Accumulator {
+
+        private final DenseAccumulator dense;
+        private final int[] idxs;
+        private final double[] sims;
+        private int size;
+
+        private Accumulator(int n, int k) {
+            this.dense = new DenseAccumulator(n, set);
+            this.idxs = new int[k];
+            this.sims = new double[k];
+            this.size = 0;
+        }
+    }
+}
@@ -17,9 +17,11 @@ import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntIterator;
 import org.ranksys.core.util.tuples.Tuple2id;
 
+import java.util.SplittableRandom;
 import java.util.function.IntToDoubleFunction;
 import java.util.stream.Stream;
 
+import static java.lang.Math.sqrt;
 import static java.util.stream.IntStream.range;
 import static org.ranksys.core.util.tuples.Tuples.tuple;
 
@@ -50,6 +52,26 @@ public abstract class VectorSimilarity implements Similarity {
      */
     protected final double[] norm2Array;
 
+    /**
+     * Per-thread accumulators of the inner products when dense is true, reused by all the calls of similarElems.
+     */
+    private final ThreadLocal<DenseAccumulator> accumulators;
+
+    /**
+     * Maximum number of preferences of a user/item iterated by similarElems, see {@link #setCap(int, long)}.
+     */
+    private int cap = Integer.MAX_VALUE;
+
+    /**
+     * Seed of the samples of the users/items with more than cap preferences.
+     */
+    private long seed = 0L;
+
+    /**
+     * Compressed sparse rows of data, see {@link #csr()}.
+     */
+    private CsrPreferences csr;
+
     /**
      * Constructor. Uses maps for internal calculation.
      *
@@ -59,6 +81,7 @@ public abstract class VectorSimilarity implements Similarity {
     public VectorSimilarity(FastPreferenceData<?, ?> data, boolean dense) {
         this.data = data;
         this.dense = dense;
+        this.accumulators = ThreadLocal.withInitial(() -> new DenseAccumulator(data.numUsers(), false));
         if (dense) {
             this.norm2Map = null;
             this.norm2Array = new double[data.numUsers()];
@@ -116,9 +139,7 @@ public abstract class VectorSimilarity implements Similarity {
         return productMap;
     }
 
-    private double[] getProductArray(int uidx) {
-        double[] productArray = new double[data.numUsers()];
-
+    private void getProductArray(int uidx, DenseAccumulator products) {
         if (data.useIteratorsPreferentially()) {
             IntIterator iidxs = data.getUidxIidxs(uidx);
             DoubleIterator ivs = data.getUidxVs(uidx);
@@ -128,20 +149,16 @@ public abstract class VectorSimilarity implements Similarity {
                 IntIterator vidxs = data.getIidxUidxs(iidx);
                 DoubleIterator vvs = data.getIidxVs(iidx);
                 while (vidxs.hasNext()) {
-                    productArray[vidxs.nextInt()] += iv * vvs.nextDouble();
+                    products.add(vidxs.nextInt(), iv * vvs.nextDouble());
                 }
             }
         } else {
             data.getUidxPreferences(uidx).forEach(ip -> {
                 data.getIidxPreferences(ip.v1).forEach(up -> {
-                    productArray[up.v1] += ip.v2 * up.v2;
+                    products.add(up.v1, ip.v2 * up.v2);
                 });
             });
         }
-
-        productArray[uidx] = 0.0;
-
-        return productArray;
     }
 
     private double getNorm2(int uidx) {
@@ -161,15 +178,145 @@ public abstract class VectorSimilarity implements Similarity {
         }
     }
 
+    /**
+     * Caps the number of preferences of a user/item that similarElems iterates, which bounds its cost for the
+     * users/items with very long profiles (for item similarities, the most popular tracks). For those, a uniform
+     * sample of cap preferences is iterated and the inner products are scaled by na / cap, which alone would be
+     * unbiased. They are then clamped to the product of the norms, which cuts the high estimates and not the low
+     * ones, so the inner products with users/items with small norms are underestimated on average. Their
+     * similarities are then approximate, and only the users/items intersecting the sample are returned. It must be
+     * called before computing similarities, and only similarElems honors it (see {@link #isCapped()}).
+     *
+     * @param cap maximum number of preferences, Integer.MAX_VALUE (the default) for exact similarities
+     * @param seed seed of the samples, which only depend on it and the index of the user/item
+     * @throws IllegalArgumentException if cap is less than 1
+     */
+    public void setCap(int cap, long seed) {
+        if (cap < 1) {
+            throw new IllegalArgumentException("cap must be positive, not " + cap);
+        }
+        this.cap = cap;
+        this.seed = seed;
+    }
+
+    /**
+     * Whether {@link #setCap(int, long)} limits the preferences iterated by similarElems. Searches that read the
+     * preferences of data directly compute exact similarities and reject capped similarities.
+     *
+     * @return true if the cap is less than Integer.MAX_VALUE
+     */
+    public boolean isCapped() {
+        return cap != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the preferences of data as compressed sparse rows, with their values and squared norms, built on the
+     * first call and then shared by the searches of this package.
+     *
+     * @return preferences as compressed sparse rows
+     */
+    synchronized CsrPreferences csr() {
+        if (csr == null) {
+            double[] norm2 = dense ? norm2Array : range(0, data.numUsers()).mapToDouble(norm2Map::get).toArray();
+            csr = new CsrPreferences(data, norm2);
+        }
+        return csr;
+    }
+
+    /**
+     * Similarities of a user/item with more than cap preferences, estimated from a sample of them.
+     */
+    private Stream<Tuple2id> sampledElems(int idx1, int na) {
+        SplittableRandom random = ProfileSample.random(seed, idx1);
+        int[] iidxs = new int[na];
+        double[] ivs = new double[na];
+        IntIterator it = data.getUidxIidxs(idx1);
+        DoubleIterator vt = data.getUidxVs(idx1);
+        for (int j = 0; it.hasNext(); j++) {
+            iidxs[j] = it.nextInt();
+            ivs[j] = vt.nextDouble();
+        }
+
+        DenseAccumulator products = dense ? accumulators.get() : null;
+        Int2DoubleOpenHashMap productMap = dense ? null : new Int2DoubleOpenHashMap();
+        for (int j : ProfileSample.positions(na, cap, random)) {
+            double iv = ivs[j];
+            IntIterator vidxs = data.getIidxUidxs(iidxs[j]);
+            DoubleIterator vvs = data.getIidxVs(iidxs[j]);
+            while (vidxs.hasNext()) {
+                if (dense) {
+                    products.add(vidxs.nextInt(), iv * vvs.nextDouble());
+                } else {
+                    productMap.addTo(vidxs.nextInt(), iv * vvs.nextDouble());
+                }
+            }
+        }
+
+        int touched = dense ? products.sort() : productMap.size();
+        int[] idxs = new int[touched];
+        double[] sums = new double[touched];
+        if (dense) {
+            for (int t = 0; t < touched; t++) {
+                idxs[t] = products.touched(t);
+                sums[t] = products.products[idxs[t]];
+            }
+            products.clear();
+        } else {
+            int t = 0;
+            for (Int2DoubleMap.Entry e : productMap.int2DoubleEntrySet()) {
+                idxs[t] = e.getIntKey();
+                sums[t] = e.getDoubleValue();
+                t++;
+            }
+        }
+
+        double norm2A = dense ? norm2Array[idx1] : norm2Map.get(idx1);
+        double scale = na / (double) cap;
+        double[] sims = new double[touched];
+        int n = 0;
+        for (int t = 0; t < touched; t++) {
+            int idx2 = idxs[t];
+            if (idx2 != idx1 && sums[t] != 0.0) {
+                double norm2B = dense ? norm2Array[idx2] : norm2Map.get(idx2);
+                double bound = sqrt(norm2A * norm2B);
+                double product = Math.max(-bound, Math.min(bound, sums[t] * scale));
+                idxs[n] = idx2;
+                sims[n] = sim(product, norm2A, norm2B);
+                n++;
+            }
+        }
+
+        int size = n;
+        return range(0, size).mapToObj(i -> tuple(idxs[i], sims[i]));
+    }
+
     @Override
     public Stream<Tuple2id> similarElems(int idx1) {
+        int na = data.numItems(idx1);
+        if (na > cap) {
+            return sampledElems(idx1, na);
+        }
         if (dense) {
             double norm2A = norm2Array[idx1];
 
-            double[] productArray = getProductArray(idx1);
-            return range(0, productArray.length)
-                    .filter(idx2 -> productArray[idx2] != 0.0)
-                    .mapToObj(idx2 -> tuple(idx2, sim(productArray[idx2], norm2A, norm2Array[idx2])));
+            DenseAccumulator products = accumulators.get();
+            getProductArray(idx1, products);
+            int touched = products.sort();
+            int[] idxs = new int[touched];
+            double[] sims = new double[touched];
+            int n = 0;
+            for (int t = 0; t < touched; t++) {
+                int idx2 = products.touched(t);
+                double product = products.products[idx2];
+                if (idx2 != idx1 && product != 0.0) {
+                    idxs[n] = idx2;
+                    sims[n] = sim(product, norm2A, norm2Array[idx2]);
+                    n++;
+                }
+            }
+            products.clear();
+
+            return range(0, n).mapToObj(i -> tuple(idxs[i], sims[i]));
         } else {
             double norm2A = norm2Map.get(idx1);
 
@@ -192,4 +339,17 @@ public abstract class VectorSimilarity implements Similarity {
      * @return similarity value
      */
     protected abstract double sim(double product, double norm2A, double norm2B);
+
+    /**
+     * Upper bound of the similarity of two binary vectors with these squared norms, i.e., numbers of non-zero
+     * values, whatever their inner product, used by {@link PrunedSimilaritySearch} to skip candidates. For a given
+     * norm2A it must not decrease with norm2B up to norm2A and not increase after. The default is no bound.
+     *
+     * @param norm2A square of the norm of the first vector
+     * @param norm2B square of the norm of the second vector
+     * @return upper bound of the similarity value
+     */
+    protected double upperBound(double norm2A, double norm2B) {
+        return Double.POSITIVE_INFINITY;
+    }
 }
@@ -0,0 +1,104 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Track-level metrics of the RecSys Challenge 2018 for a single playlist: R-precision, NDCG and recommended songs
+ * clicks. Artist matches of R-precision are not considered, since the converted data only has track ids.
+ */
+public class ChallengeMetrics {
+
+    /**
+     * Value of the clicks metric when no relevant track is recommended.
+     */
+    public static final int MAX_CLICKS = 51;
+
+    private ChallengeMetrics() {
+    }
+
+    /**
+     * R-precision: fraction of the relevant tracks found in the first |G| recommendations.
+     *
+     * @param <I> type of the items
+     * @param recommended recommended tracks, best first
+     * @param relevant held-out tracks of the playlist
+     * @return R-precision
+     */
+    public static <I> double rPrecision(List<I> recommended, Set<I> relevant) {
+        if (relevant.isEmpty()) {
+            return 0.0;
+        }
+        int n = Math.min(relevant.size(), recommended.size());
+        int hits = 0;
+        for (int i = 0; i < n; i++) {
+            if (relevant.contains(recommended.get(i))) {
+                hits++;
+            }
+        }
+        return hits / (double) relevant.size();
+    }
+
+    /**
+     * NDCG as defined by the challenge: binary relevance, the first position is not discounted and the ideal DCG
+     * assumes as many relevant tracks at the top as relevant tracks recommended.
+     *
+     * @param <I> type of the items
+     * @param recommended recommended tracks, best first
+     * @param relevant held-out tracks of the playlist
+     * @return NDCG
+     */
+    public static <I> double ndcg(List<I> recommended, Set<I> relevant) {
+        double dcg = 0.0;
+        int hits = 0;
+        for (int i = 0; i < recommended.size(); i++) {
+            if (relevant.contains(recommended.get(i))) {
+                dcg += discount(i);
+                hits++;
+            }
+        }
+        if (hits == 0) {
+            return 0.0;
+        }
+        double idcg = 0.0;
+        for (int i = 0; i < hits; i++) {
+            idcg += discount(i);
+        }
+        return dcg / idcg;
+    }
+
+    private static double discount(int i) {
+        return i == 0 ? 1.0 : 1.0 / (Math.log(i + 1) / Math.log(2));
+    }
+
+    /**
+     * Recommended songs clicks: number of refreshes of 10 tracks until the first relevant one is shown.
+     *
+     * @param <I> type of the items
+     * @param recommended recommended tracks, best first
+     * @param relevant held-out tracks of the playlist
+     * @return clicks, {@link #MAX_CLICKS} if no relevant track is recommended
+     */
+    public static <I> int clicks(List<I> recommended, Set<I> relevant) {
+        for (int i = 0; i < recommended.size(); i++) {
+            if (relevant.contains(recommended.get(i))) {
+                return i / 10;
+            }
+        }
+        return MAX_CLICKS;
+    }
+}
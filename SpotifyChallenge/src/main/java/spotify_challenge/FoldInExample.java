@@ -0,0 +1,84 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import mf.FactorizationSnapshot;
+import mf.FlatFactorization;
+import mf.MFFactorizer;
+import mf.rec.FlatMFRecommender;
+import es.uam.eps.ir.ranksys.rec.runner.RecommenderRunner;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilterRecommenderRunner;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import org.ranksys.formats.rec.RecommendationFormat;
+import org.ranksys.formats.rec.SimpleRecommendationFormat;
+
+import java.io.IOException;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Generates top-500 recommendations for new playlists without retraining the MF model. The item factors of a model
+ * saved by MFRecommenderExample are memory-mapped and the factors of the new playlists are folded in with
+ * MFFactorizer.FoldIn.
+ * <p>
+ * newDataPath has the same format as mpd_converted_track_train.csv and uses the same track ids, the playlists ids
+ * can be new. The hyper-parameters must be the ones used to train the model, which is found with
+ * MFRecommenderExample.modelName, or given as the first argument. Change MPD_PATH and run it.
+ */
+public class FoldInExample {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String newDataPath = DATA_PATH + "/challenge_converted_track_train.csv";
+        String recPath = DATA_PATH + "/pzt_100_50.0_foldin";
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        int numIter = 100;
+        // the model trained by MFRecommenderExample with these hyper-parameters, unless another one is given
+        String modelPath = args.length > 0 ? args[0]
+                : MFRecommenderExample.modelName(DATA_PATH, k, alpha, lambda, numIter, false) + ".model";
+        DoubleUnaryOperator confidence = x -> 1 + alpha * x;
+        int numSweeps = 20;
+
+        System.out.println("Loading the factorization from " + modelPath);
+        FlatFactorization<Long, Long> model = FactorizationSnapshot.load(modelPath, lp, lp);
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(SpotifyPreferenceReader.get().read(newDataPath, lp, lp)
+                .map(t -> t.v1).distinct().sorted());
+        FastPreferenceData<Long, Long> newData = SimpleFastPreferenceData.load(SpotifyPreferenceReader.get().read(newDataPath, lp, lp), userIndex, model);
+
+        long time0 = System.nanoTime();
+        MFFactorizer<Long, Long> factorizer = new MFFactorizer<>(lambda, confidence, 0);
+        FlatFactorization<Long, Long> factorization = factorizer.foldIn(model, numSweeps).foldIn(newData);
+        double time1 = (System.nanoTime() - time0) / 1_000_000.0;
+        System.out.println(String.format("Folded in %d playlists in %.0fms (%.3fms per playlist)", newData.numUsersWithPreferences(), time1, time1 / newData.numUsersWithPreferences()));
+
+        RecommendationFormat<Long, Long> format = new SimpleRecommendationFormat<>(lp, lp);
+        int maxLength = 500;
+        RecommenderRunner<Long, Long> runner = new FastFilterRecommenderRunner<>(userIndex, model, userIndex.getAllUsers(), FastFilters.notInTrain(newData), maxLength);
+
+        System.out.println("Running " + recPath);
+        try (RecommendationFormat.Writer<Long, Long> writer = format.getWriter(recPath)) {
+            runner.run(new FlatMFRecommender<>(userIndex, model, factorization), writer);
+        }
+    }
+}
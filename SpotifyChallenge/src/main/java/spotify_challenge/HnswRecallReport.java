@@ -0,0 +1,109 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import mf.BinaryMFFactorizer;
+import mf.FlatFactorization;
+import mf.rec.FlatMFRecommender;
+import mf.rec.HnswIndex;
+import mf.rec.HnswMFRecommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Recall@500 of the HNSW index against exact scoring on the validation split, for several sizes of the candidate
+ * list (ef), together with the time per playlist. Exact scoring (FlatMFRecommender) and HNSW are both timed one
+ * playlist at a time on a single thread. The index is built the first time and saved next to the data.
+ * Change MPD_PATH and run it.
+ */
+public class HnswRecallReport {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String indexPath = DATA_PATH + "/validation_100_50.0.hnsw";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+        FastPreferenceData<Long, Long> trainData = split.getTrainData();
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        int numIter = 10;
+        int maxLength = 500;
+        int M = 16;
+        int efConstruction = 200;
+        int[] efs = {500, 750, 1000, 1500, 2000};
+
+        Factorization<Long, Long> factorization = new BinaryMFFactorizer<Long, Long>(lambda, alpha, numIter).factorize(k, trainData);
+        FlatFactorization<Long, Long> flat = FlatFactorization.of(factorization);
+
+        HnswIndex index;
+        if (new File(indexPath).exists()) {
+            System.out.println("Loading the index from " + indexPath);
+            index = HnswIndex.load(indexPath, flat.getItemFactors());
+        } else {
+            index = HnswIndex.build(flat.getItemFactors(), M, efConstruction, 1987);
+            index.save(indexPath);
+        }
+
+        List<Long> playlists = split.getTestData().keySet().stream().sorted().collect(toList());
+        Function<Long, IntPredicate> filter = FastFilters.notInTrain(trainData);
+
+        Map<Long, Set<Long>> exact = new HashMap<>();
+        FlatMFRecommender<Long, Long> exactRecommender = new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), flat);
+        double exactTime = 0.0;
+        for (Long u : playlists) {
+            long t0 = System.nanoTime();
+            Set<Long> items = new HashSet<>();
+            exactRecommender.getRecommendation(exactRecommender.user2uidx(u), maxLength, filter.apply(u)).getIidxs().forEach(t -> items.add(exactRecommender.iidx2item(t.v1)));
+            exactTime += System.nanoTime() - t0;
+            exact.put(u, items);
+        }
+        System.out.println(String.format("exact\trecall@%d=1.0000\tper-playlist=%.3fms", maxLength, exactTime / 1_000_000.0 / playlists.size()));
+
+        for (int ef : efs) {
+            HnswMFRecommender<Long, Long> recommender = new HnswMFRecommender<>(split.getUserIndex(), split.getItemIndex(), flat, index, ef);
+            double hits = 0.0;
+            double total = 0.0;
+            double time = 0.0;
+            for (Long u : playlists) {
+                long t0 = System.nanoTime();
+                Set<Long> items = new HashSet<>();
+                recommender.getRecommendation(recommender.user2uidx(u), maxLength, filter.apply(u)).getIidxs().forEach(t -> items.add(recommender.iidx2item(t.v1)));
+                time += System.nanoTime() - t0;
+                Set<Long> relevant = exact.get(u);
+                items.retainAll(relevant);
+                hits += items.size();
+                total += relevant.size();
+            }
+            System.out.println(String.format("ef=%d\trecall@%d=%.4f\tper-playlist=%.3fms", ef, maxLength, total > 0 ? hits / total : 0.0, time / 1_000_000.0 / playlists.size()));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import nn.item.sim.ItemSimilarities;
+import nn.item.sim.ItemSimilarity;
+import nn.neighborhood.TopKNeighborhood;
+import nn.sim.SetSimilarity;
+import nn.sim.Similarity;
+import nn.sim.VectorSimilarity;
+import org.ranksys.core.util.tuples.Tuple2id;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Per-track latency of the top-k neighbors of ItemNeighborhoods.topK with the accumulation of the most popular
+ * tracks capped at several numbers of playlists (see SetSimilarity.setCap and VectorSimilarity.setCap): mean and
+ * percentiles of the latency, and overlap@k of the neighbors with the exact ones, for a random sample of tracks and
+ * for the most popular tracks. Change MPD_PATH and run it.
+ */
+public class HubCapReport {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String userPath = DATA_PATH + "/u_index.txt";
+        String itemPath = DATA_PATH + "/i_index.txt";
+        String trainDataPath = DATA_PATH + "/mpd_converted_track_train.csv";
+
+        int k = 100;
+        int sampleSize = 10000;
+        int numPopular = 1000;
+        int[] caps = {Integer.MAX_VALUE, 20000, 5000, 1000};
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(userPath, lp));
+        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(itemPath, lp));
+        FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SpotifyPreferenceReader.get().read(trainDataPath, lp, lp), userIndex, itemIndex);
+        System.out.println("Loaded training data!");
+
+        Map<String, Supplier<ItemSimilarity<Long>>> similarities = new LinkedHashMap<>();
+        similarities.put("vector cosine", () -> ItemSimilarities.vectorCosine(trainData, true));
+        similarities.put("set jaccard", () -> ItemSimilarities.setJaccard(trainData, true));
+
+        Map<String, int[]> samples = new LinkedHashMap<>();
+        samples.put("random", new Random(1987).ints(0, trainData.numItems()).limit(sampleSize).toArray());
+        samples.put("popular", trainData.getIidxWithPreferences().boxed()
+                .sorted((i1, i2) -> Integer.compare(trainData.numUsers(i2), trainData.numUsers(i1)))
+                .limit(numPopular).mapToInt(Integer::intValue).toArray());
+
+        similarities.forEach((name, supplier) -> samples.forEach((sampleName, sample) -> {
+            List<Set<Integer>> exact = null;
+            for (int cap : caps) {
+                Similarity sim = supplier.get().similarity();
+                if (sim instanceof SetSimilarity) {
+                    ((SetSimilarity) sim).setCap(cap, 1987);
+                } else {
+                    ((VectorSimilarity) sim).setCap(cap, 1987);
+                }
+                TopKNeighborhood topK = new TopKNeighborhood(sim, k);
+
+                long[] latencies = new long[sample.length];
+                List<Set<Integer>> neighbors = IntStream.range(0, sample.length).parallel()
+                        .mapToObj(j -> {
+                            long time0 = System.nanoTime();
+                            Set<Integer> set = topK.getNeighbors(sample[j]).map(Tuple2id::v1).collect(toSet());
+                            latencies[j] = System.nanoTime() - time0;
+                            return set;
+                        })
+                        .collect(toList());
+                if (exact == null) {
+                    exact = neighbors;
+                }
+
+                double overlap = 0.0;
+                for (int j = 0; j < sample.length; j++) {
+                    Set<Integer> expected = exact.get(j);
+                    overlap += expected.isEmpty() ? 1.0 : neighbors.get(j).stream().filter(expected::contains).count() / (double) expected.size();
+                }
+                overlap /= sample.length;
+
+                Arrays.sort(latencies);
+                System.out.println(String.format("%s\t%s\tcap=%s\tmean=%.2fms\tp50=%.2fms\tp90=%.2fms\tp99=%.2fms\tmax=%.2fms\toverlap@%d=%.4f",
+                        name, sampleName, cap == Integer.MAX_VALUE ? "none" : Integer.toString(cap),
+                        Arrays.stream(latencies).average().orElse(0.0) / 1e6, percentile(latencies, 0.5), percentile(latencies, 0.9),
+                        percentile(latencies, 0.99), percentile(latencies, 1.0), k, overlap));
+            }
+        }));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+}
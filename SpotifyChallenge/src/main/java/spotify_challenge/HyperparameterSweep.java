@@ -0,0 +1,239 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.BinaryMFFactorizer;
+import mf.RowScheduler;
+import mf.rec.FlatMFRecommender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Comparator.comparingDouble;
+
+/**
+ * Trains and evaluates several MF configurations on the validation split in the same JVM. The training data is
+ * loaded once, and the compressed index lists of the users and of the items are built once and shared by all the
+ * factorizers (see {@link BinaryMFFactorizer.SharedLists}).
+ * <p>
+ * Up to maxConcurrent configurations are trained at the same time, each one with a {@link RowScheduler} of
+ * threadsPerConfig threads, so the row updates use at most maxConcurrent * threadsPerConfig cores. The Gram
+ * matrices and the evaluation of a configuration run on the common fork-join pool, outside of that core budget.
+ * Every configuration has its own RR1 workspace per thread of its scheduler (see
+ * {@link BinaryMFFactorizer#workspaceBytes(int, int)}), and it only starts when the factors and workspaces of all
+ * the running ones and its own fit in the memory budget. The results are returned as a leaderboard sorted by
+ * R-precision.
+ */
+public class HyperparameterSweep {
+
+    private static final Logger LOG = Logger.getLogger(HyperparameterSweep.class.getName());
+
+    private static final long MB = 1 << 20;
+
+    private final ValidationSplit split;
+    private final int maxConcurrent;
+    private final int threadsPerConfig;
+    private final long memoryBudget;
+    private final int maxLength;
+    private BinaryMFFactorizer.SharedLists lists = null;
+
+    /**
+     * Constructor.
+     *
+     * @param split validation split
+     * @param maxConcurrent maximum number of configurations trained at the same time
+     * @param threadsPerConfig number of threads of the row updates of every configuration
+     * @param memoryBudget maximum memory of the factors and RR1 workspaces of the running configurations, in bytes
+     * @param maxLength length of the recommendation lists that are evaluated
+     */
+    public HyperparameterSweep(ValidationSplit split, int maxConcurrent, int threadsPerConfig, long memoryBudget, int maxLength) {
+        this.split = split;
+        this.maxConcurrent = maxConcurrent;
+        this.threadsPerConfig = threadsPerConfig;
+        this.memoryBudget = memoryBudget;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Trains and evaluates all the configurations.
+     *
+     * @param configs configurations
+     * @return leaderboard, best R-precision first
+     */
+    public List<Entry> run(List<Config> configs) {
+        long time0 = System.nanoTime();
+        for (Config config : configs) {
+            if (permits(config) > memoryBudget / MB) {
+                throw new IllegalArgumentException(String.format("%s needs %dMB, budget is %dMB", config, bytes(config) / MB, memoryBudget / MB));
+            }
+        }
+
+        BlockingQueue<RowScheduler> schedulers = new ArrayBlockingQueue<>(maxConcurrent);
+        for (int s = 0; s < maxConcurrent; s++) {
+            schedulers.add(new RowScheduler(threadsPerConfig, true, 16));
+        }
+        Semaphore memory = new Semaphore((int) (memoryBudget / MB), true);
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrent, r -> {
+            Thread thread = new Thread(r, "sweep-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<Entry>> futures = new ArrayList<>();
+        for (Config config : configs) {
+            futures.add(executor.submit(() -> {
+                int permits = permits(config);
+                memory.acquire(permits);
+                RowScheduler scheduler = schedulers.take();
+                try {
+                    return trainAndEvaluate(config, scheduler);
+                } finally {
+                    schedulers.put(scheduler);
+                    memory.release(permits);
+                }
+            }));
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (Future<Entry> future : futures) {
+                entries.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        entries.sort(comparingDouble((Entry e) -> e.result.rPrecision).reversed());
+
+        LOG.log(Level.INFO, String.format("sweep of %d configurations in %.2fs", configs.size(), (System.nanoTime() - time0) / 1_000_000_000.0));
+        return entries;
+    }
+
+    private Entry trainAndEvaluate(Config config, RowScheduler scheduler) {
+        long time0 = System.nanoTime();
+        BinaryMFFactorizer<Long, Long> factorizer = new BinaryMFFactorizer<>(config.lambda, config.lambda, config.alpha, config.numIter, config.floatFactors);
+        factorizer.setSharedLists(lists());
+        factorizer.setScheduler(scheduler);
+        Factorization<Long, Long> factorization = factorizer.factorize(config.k, split.getTrainData());
+        double trainTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+
+        ValidationSplit.Result result = split.evaluate(new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), factorization), maxLength);
+        LOG.log(Level.INFO, String.format("%s\t%s\ttrain = %.2fs", config, result, trainTime));
+
+        return new Entry(config, result, trainTime);
+    }
+
+    /**
+     * Memory of the factors of a configuration and of the RR1 workspaces of its threads.
+     *
+     * @param config configuration
+     * @return number of bytes
+     */
+    public long bytes(Config config) {
+        long rows = split.getUserIndex().numUsers() + split.getItemIndex().numItems();
+        return rows * config.k * (config.floatFactors ? 4 : 8)
+                + threadsPerConfig * BinaryMFFactorizer.workspaceBytes(config.k, lists().maxSize());
+    }
+
+    private BinaryMFFactorizer.SharedLists lists() {
+        if (lists == null) {
+            lists = new BinaryMFFactorizer.SharedLists(split.getTrainData());
+            LOG.log(Level.INFO, String.format("shared index lists of %dMB", lists.bytes() / MB));
+        }
+        return lists;
+    }
+
+    private static int permits(long bytes) {
+        return (int) ((bytes + MB - 1) / MB);
+    }
+
+    private int permits(Config config) {
+        return permits(bytes(config));
+    }
+
+    /**
+     * Formats a leaderboard as a table with one configuration per line.
+     *
+     * @param entries leaderboard
+     * @return table
+     */
+    public static String format(List<Entry> entries) {
+        StringBuilder table = new StringBuilder("rank\tk\talpha\tlambda\titer\tfloat\tR-prec\tNDCG\tclicks\ttrain(s)\n");
+        for (int r = 0; r < entries.size(); r++) {
+            Entry e = entries.get(r);
+            table.append(String.format("%d\t%d\t%.1f\t%.4f\t%d\t%b\t%.5f\t%.5f\t%.4f\t%.1f%n", r + 1,
+                    e.config.k, e.config.alpha, e.config.lambda, e.config.numIter, e.config.floatFactors,
+                    e.result.rPrecision, e.result.ndcg, e.result.clicks, e.trainTime));
+        }
+        return table.toString();
+    }
+
+    /**
+     * Hyper-parameters of a BinaryMFFactorizer.
+     */
+    public static class Config {
+
+        public final int k;
+        public final double alpha;
+        public final double lambda;
+        public final int numIter;
+        public final boolean floatFactors;
+
+        public Config(int k, double alpha, double lambda, int numIter, boolean floatFactors) {
+            this.k = k;
+            this.alpha = alpha;
+            this.lambda = lambda;
+            this.numIter = numIter;
+            this.floatFactors = floatFactors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("k=%d alpha=%.1f lambda=%.4f iter=%d%s", k, alpha, lambda, numIter, floatFactors ? " float" : "");
+        }
+    }
+
+    /**
+     * Line of the leaderboard.
+     */
+    public static class Entry {
+
+        public final Config config;
+        public final ValidationSplit.Result result;
+        public final double trainTime;
+
+        public Entry(Config config, ValidationSplit.Result result, double trainTime) {
+            this.config = config;
+            this.result = result;
+            this.trainTime = trainTime;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import nn.item.sim.ItemSimilarities;
+import nn.item.sim.ItemSimilarity;
+import nn.neighborhood.BatchTopKNeighborhood;
+import nn.neighborhood.PrunedTopKNeighborhood;
+import nn.neighborhood.TopKNeighborhood;
+import nn.sim.PrunedSimilaritySearch;
+import nn.sim.Similarity;
+import org.ranksys.core.util.tuples.Tuple2id;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Compares the item neighborhoods of ItemNeighborhoods.topK (one track at a time), ItemNeighborhoods.batchTopK
+ * (sparse matrix product) and, for cosine and Jaccard, ItemNeighborhoods.prunedTopK (one track at a time, skipping the
+ * tracks that cannot be neighbors) for several normalizations of Similarities: throughput in tracks per second,
+ * number of tracks of a random sample whose neighbors differ and candidates of the pruned search. Change MPD_PATH and
+ * run it.
+ */
+public class ItemSimsBenchmark {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String userPath = DATA_PATH + "/u_index.txt";
+        String itemPath = DATA_PATH + "/i_index.txt";
+        String trainDataPath = DATA_PATH + "/mpd_converted_track_train.csv";
+
+        int k = 100;
+        int sampleSize = 10000;
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(userPath, lp));
+        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(itemPath, lp));
+        FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SpotifyPreferenceReader.get().read(trainDataPath, lp, lp), userIndex, itemIndex);
+        System.out.println("Loaded training data!");
+
+        Map<String, ItemSimilarity<Long>> similarities = new LinkedHashMap<>();
+        similarities.put("vector cosine", ItemSimilarities.vectorCosine(trainData, false));
+        similarities.put("set jaccard", ItemSimilarities.setJaccard(trainData, false));
+        similarities.put("set cosine 0.5", ItemSimilarities.setCosine(trainData, 0.5, false));
+        similarities.put("log-likelihood", ItemSimilarities.logLikelihood(trainData, false));
+
+        List<String> pruned = Arrays.asList("vector cosine", "set jaccard", "set cosine 0.5");
+
+        int[] sample = new Random(1987).ints(0, trainData.numItems()).limit(sampleSize).toArray();
+        Comparator<Tuple2id> byIdx = Comparator.comparingInt(Tuple2id::v1);
+
+        similarities.forEach((name, isim) -> {
+            Similarity sim = isim.similarity();
+            TopKNeighborhood topK = new TopKNeighborhood(sim, k);
+
+            long time0 = System.nanoTime();
+            List<List<Tuple2id>> expected = IntStream.of(sample).parallel()
+                    .mapToObj(iidx -> topK.getNeighbors(iidx).sorted(byIdx).collect(toList()))
+                    .collect(toList());
+            double topKRate = sampleSize / ((System.nanoTime() - time0) / 1_000_000_000.0);
+
+            time0 = System.nanoTime();
+            BatchTopKNeighborhood batch = new BatchTopKNeighborhood(sim, k);
+            double batchRate = trainData.numItems() / ((System.nanoTime() - time0) / 1_000_000_000.0);
+
+            int different = 0;
+            for (int j = 0; j < sample.length; j++) {
+                if (!expected.get(j).equals(batch.getNeighbors(sample[j]).sorted(byIdx).collect(toList()))) {
+                    different++;
+                }
+            }
+            System.out.println(String.format("%s\ttopK=%.0f tracks/s\tbatchTopK=%.0f tracks/s\tspeed-up=%.1f\tdifferent=%d/%d",
+                    name, topKRate, batchRate, batchRate / topKRate, different, sampleSize));
+
+            if (!pruned.contains(name)) {
+                return;
+            }
+            PrunedSimilaritySearch search = new PrunedSimilaritySearch(sim);
+            PrunedTopKNeighborhood prunedTopK = new PrunedTopKNeighborhood(search, k);
+            time0 = System.nanoTime();
+            List<List<Tuple2id>> actual = IntStream.of(sample).parallel()
+                    .mapToObj(iidx -> prunedTopK.getNeighbors(iidx).sorted(byIdx).collect(toList()))
+                    .collect(toList());
+            double prunedRate = sampleSize / ((System.nanoTime() - time0) / 1_000_000_000.0);
+
+            different = 0;
+            for (int j = 0; j < sample.length; j++) {
+                if (!expected.get(j).equals(actual.get(j))) {
+                    different++;
+                }
+            }
+            System.out.println(String.format("%s\tprunedTopK=%.0f tracks/s\tspeed-up=%.1f\tdifferent=%d/%d\t%s",
+                    name, prunedRate, prunedRate / topKRate, different, sampleSize, search));
+        });
+    }
+}
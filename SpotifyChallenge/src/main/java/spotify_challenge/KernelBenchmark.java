@@ -0,0 +1,92 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import mf.BinaryMFFactorizer;
+import mf.FlatFactorization;
+import mf.Kernels;
+import mf.ScalarKernels;
+import mf.rec.FlatMFRecommender;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Compares the scalar and vector kernels of the mf package on the validation split: time per ALS iteration and time
+ * per playlist to score all the tracks and take the top 500. Both kernels start from the same factors.
+ * <p>
+ * The vector kernels need the jar built with {@code mvn -Pvector package} and the JVM option
+ * {@code --add-modules jdk.incubator.vector}, otherwise only the scalar kernels are run. Change MPD_PATH and run it.
+ */
+public class KernelBenchmark {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+        FastPreferenceData<Long, Long> trainData = split.getTrainData();
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        int numIter = 5;
+        int maxLength = 500;
+
+        Map<String, Kernels> kernels = new LinkedHashMap<>();
+        kernels.put("scalar", new ScalarKernels());
+        Kernels vector = Kernels.vector();
+        if (vector != null) {
+            kernels.put("vector", vector);
+        } else {
+            System.out.println("vector kernels not available, see mf.Kernels");
+        }
+
+        List<Long> playlists = split.getTestData().keySet().stream().sorted().collect(toList());
+        Function<Long, IntPredicate> filter = FastFilters.notInTrain(trainData);
+
+        kernels.forEach((name, kernel) -> {
+            Kernels.set(kernel);
+
+            Factorization<Long, Long> factorization = new BinaryMFFactorizer<Long, Long>(lambda, alpha, 0).factorize(k, trainData);
+            BinaryMFFactorizer<Long, Long> step = new BinaryMFFactorizer<>(lambda, alpha, 1);
+            double total = 0.0;
+            for (int t = 1; t <= numIter; t++) {
+                long time0 = System.nanoTime();
+                step.factorize(factorization, trainData);
+                double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+                total += time1;
+                System.out.println(String.format("%s\titeration=%d\tt=%.2fs", name, t, time1));
+            }
+
+            FlatMFRecommender<Long, Long> recommender = new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), FlatFactorization.of(factorization));
+            long time0 = System.nanoTime();
+            playlists.forEach(u -> recommender.getRecommendation(recommender.user2uidx(u), maxLength, filter.apply(u)));
+            double time1 = (System.nanoTime() - time0) / 1_000_000.0;
+
+            System.out.println(String.format("%s\tper-iteration=%.2fs\tper-playlist=%.3fms", name, total / numIter, time1 / playlists.size()));
+        });
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.MFFactorizer;
+import mf.rec.FlatMFRecommender;
+
+import java.io.IOException;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Checks that the single precision mode of MFFactorizer does not hurt the challenge metrics. The same model is trained
+ * on the validation split with double and float factors, both are evaluated on the held-out tracks and the run fails
+ * if any metric of the float model differs from the double one by more than the tolerance.
+ * <p>
+ * Assuming that preprocess.py created the validation split (convert_mpd with validation=True), change MPD_PATH and
+ * run it.
+ */
+public class MFPrecisionCheck {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        DoubleUnaryOperator confidence = x -> 1 + alpha * x;
+        int numIter = 20;
+        int maxLength = 500;
+        // absolute tolerance for R-precision and NDCG, clicks are allowed ten times as much
+        double tolerance = 0.002;
+
+        ValidationSplit.Result[] results = new ValidationSplit.Result[2];
+        for (boolean floatFactors : new boolean[]{false, true}) {
+            String name = floatFactors ? "float" : "double";
+            System.out.println("Running " + name);
+            Factorization<Long, Long> factorization = new MFFactorizer<Long, Long>(lambda, confidence, numIter, true, floatFactors)
+                    .factorize(k, split.getTrainData());
+            ValidationSplit.Result result = split.evaluate(new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), factorization), maxLength);
+            System.out.println(name + "\t" + result);
+            results[floatFactors ? 1 : 0] = result;
+        }
+
+        double dRPrec = Math.abs(results[1].rPrecision - results[0].rPrecision);
+        double dNdcg = Math.abs(results[1].ndcg - results[0].ndcg);
+        double dClicks = Math.abs(results[1].clicks - results[0].clicks);
+        System.out.println(String.format("diff\tR-prec=%.5f\tNDCG=%.5f\tclicks=%.4f", dRPrec, dNdcg, dClicks));
+
+        if (dRPrec > tolerance || dNdcg > tolerance || dClicks > 10 * tolerance) {
+            System.out.println("float model is NOT within tolerance " + tolerance);
+            System.exit(1);
+        }
+        System.out.println("float model is within tolerance " + tolerance);
+    }
+}
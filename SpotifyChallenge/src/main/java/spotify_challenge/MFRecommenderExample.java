@@ -21,11 +21,12 @@ import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
 import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.BinaryMFFactorizer;
+import mf.FactorizationSnapshot;
+import mf.LossImprovementStopping;
 import mf.MFFactorizer;
-import es.uam.eps.ir.ranksys.mf.rec.MFRecommender;
-import es.uam.eps.ir.ranksys.rec.Recommender;
-import es.uam.eps.ir.ranksys.rec.runner.RecommenderRunner;
-import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilterRecommenderRunner;
+import mf.RowScheduler;
+import mf.rec.BatchMFRecommenderRunner;
 import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
 import org.jooq.lambda.Unchecked;
 import org.ranksys.formats.index.ItemsReader;
@@ -37,7 +38,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
-import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 import java.util.function.IntPredicate;
 import java.util.function.Supplier;
@@ -77,35 +77,96 @@ public class MFRecommenderExample {
 
         System.out.println("Starting the factorization!");
         // implicit matrix factorization of Pilaszy et al. 2010
-        Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
+        Map<String, Supplier<Factorization<Long, Long>>> recMap = new HashMap<>();
 
         int k = 100;
         double alpha = 50.0;
 
-        recMap.put(DATA_PATH + "/pzt_" + Integer.toString(k) + "_" + Double.toString(alpha), () -> {
+        String recName = DATA_PATH + "/pzt_" + Integer.toString(k) + "_" + Double.toString(alpha);
+        recMap.put(recName, Unchecked.supplier(() -> {
             double lambda = 0.1;
-            DoubleUnaryOperator confidence = x -> 1 + alpha * x;
             int numIter = 100;
+            // true to stop when the sampled loss improves less than 0.1% per iteration, the final submission used
+            // all numIter iterations
+            boolean earlyStopping = false;
 
-            Factorization<Long, Long> factorization = new MFFactorizer<Long, Long>(lambda, confidence, numIter).factorize(k, trainData);
+            // the trained model is kept next to the recommendations, later runs map it instead of training again; its
+            // name has all the hyper-parameters and a fingerprint of the data, so that other settings train a new one
+            String modelName = modelName(DATA_PATH, k, alpha, lambda, numIter, earlyStopping);
+            String modelPath = modelName + ".model";
+            Factorization<Long, Long> factorization;
+            if (new File(modelPath).exists()) {
+                System.out.println("Loading the factorization from " + modelPath);
+                factorization = FactorizationSnapshot.load(modelPath, lp, lp);
+            } else {
+                // SpotifyPreferenceReader gives binary data, same model as MFFactorizer with confidence 1 + alpha * x
+                MFFactorizer<Long, Long> factorizer = new BinaryMFFactorizer<>(lambda, alpha, numIter);
+                // a run that dies is continued from the last checkpoint by running this again
+                factorizer.setCheckpoints(modelName + "_checkpoints", 10, true);
+                if (earlyStopping) {
+                    factorizer.setEarlyStopping(new LossImprovementStopping<>(factorizer, 10000, 0.001, 1987));
+                }
+                // splits the rows by number of preferences, popular tracks would otherwise delay the end of every step
+                factorizer.setScheduler(new RowScheduler(Runtime.getRuntime().availableProcessors(), true, 16));
+                factorization = factorizer.factorize(k, trainData);
+                FactorizationSnapshot.save(factorization, modelPath);
+            }
 
-            return new MFRecommender<>(userIndex, itemIndex, factorization);
-        });
+            return factorization;
+        }));
 
         Set<Long> targetUsers = loadTestUsers(challengeUsersPath);
         RecommendationFormat<Long, Long> format = new SimpleRecommendationFormat<>(lp, lp);
         Function<Long, IntPredicate> filter = FastFilters.notInTrain(trainData);
         int maxLength = 500;
-        RecommenderRunner<Long, Long> runner = new FastFilterRecommenderRunner<>(userIndex, itemIndex, targetUsers.stream(), filter, maxLength);
+        // scores blocks of playlists against tiles of the track factors, same lists as FlatMFRecommender
+        BatchMFRecommenderRunner<Long, Long> runner = new BatchMFRecommenderRunner<>(targetUsers.stream().sorted(), filter, maxLength);
 
-        recMap.forEach(Unchecked.biConsumer((name, recommender) -> {
+        recMap.forEach(Unchecked.biConsumer((name, factorization) -> {
             System.out.println("Running " + name);
             try (RecommendationFormat.Writer<Long, Long> writer = format.getWriter(name)) {
-                runner.run(recommender.get(), writer);
+                runner.run(factorization.get(), writer);
             }
         }));
     }
 
+    /**
+     * Path, without extension, of the model trained by this example with some hyper-parameters on the current files
+     * of a data directory. The model is modelName + ".model" and its checkpoints are in modelName + "_checkpoints".
+     *
+     * @param dataPath directory with u_index.txt, i_index.txt and mpd_converted_track_train.csv
+     * @param k number of latent factors
+     * @param alpha confidence of the preferences is 1 + alpha
+     * @param lambda regularization factor
+     * @param numIter number of iterations
+     * @param earlyStopping whether early stopping was enabled
+     * @return path of the model without extension
+     */
+    public static String modelName(String dataPath, int k, double alpha, double lambda, int numIter,
+                                   boolean earlyStopping) {
+        String fingerprint = fingerprint(dataPath + "/u_index.txt", dataPath + "/i_index.txt",
+                dataPath + "/mpd_converted_track_train.csv");
+        return String.format("%s/pzt_%d_%s_%s_%d%s_%s", dataPath, k, Double.toString(alpha), Double.toString(lambda),
+                numIter, earlyStopping ? "_es" : "", fingerprint);
+    }
+
+    /**
+     * Fingerprint of some files from their paths, sizes and modification times.
+     *
+     * @param paths paths of the files
+     * @return hexadecimal fingerprint
+     */
+    private static String fingerprint(String... paths) {
+        long hash = 17;
+        for (String path : paths) {
+            File file = new File(path);
+            hash = 31 * hash + file.getAbsolutePath().hashCode();
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        return Long.toHexString(hash);
+    }
+
     public static Set<Long> loadTestUsers(String filePath) {
         Scanner s = null;
         try {
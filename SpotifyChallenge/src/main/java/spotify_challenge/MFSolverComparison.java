@@ -0,0 +1,88 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.MFALSFactorizer;
+import mf.MFCGFactorizer;
+import mf.MFFactorizer;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Compares the RR1 solver of MFFactorizer with the conjugate gradient solver of MFCGFactorizer. Both start from the
+ * same seeded initialization and are run one iteration at a time, printing the wall-clock time and the squared loss
+ * after every iteration.
+ * <p>
+ * The loss is computed exactly and is expensive on the full MPD, point trainDataPath to a sample (e.g. the validation
+ * split created by preprocess.py) for a quick comparison. Change MPD_PATH and run it.
+ */
+public class MFSolverComparison {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String userPath = DATA_PATH + "/u_index.txt";
+        String itemPath = DATA_PATH + "/i_index.txt";
+        String trainDataPath = DATA_PATH + "/mpd_converted_track_train.csv";
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(userPath, lp));
+        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(itemPath, lp));
+        System.out.println("Start loading the training data!");
+        FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SpotifyPreferenceReader.get().read(trainDataPath, lp, lp), userIndex, itemIndex);
+        System.out.println("Finished loading the training data!");
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        DoubleUnaryOperator confidence = x -> 1 + alpha * x;
+        int numIter = 20;
+        int numSteps = 3;
+
+        // each factorizer runs a single iteration, so that it can be timed and evaluated after every step
+        Map<String, Function<Integer, MFALSFactorizer<Long, Long>>> solvers = new LinkedHashMap<>();
+        solvers.put("rr1", n -> new MFFactorizer<>(lambda, confidence, n));
+        solvers.put("cg" + Integer.toString(numSteps), n -> new MFCGFactorizer<>(lambda, confidence, n, numSteps));
+
+        solvers.forEach((name, solver) -> {
+            Factorization<Long, Long> factorization = solver.apply(0).factorize(k, trainData);
+            MFALSFactorizer<Long, Long> step = solver.apply(1);
+
+            double total = 0.0;
+            for (int t = 1; t <= numIter; t++) {
+                long time0 = System.nanoTime();
+                step.factorize(factorization, trainData);
+                double time1 = (System.nanoTime() - time0) / 1_000_000_000.0;
+                total += time1;
+
+                double error = step.error(factorization, trainData);
+                System.out.println(String.format("%s\titeration=%d\tt=%.2fs\ttotal=%.2fs\te=%.6f", name, t, time1, total, error));
+            }
+        });
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Grid search of the hyper-parameters of the MF model on the validation split in a single run, instead of one run
+ * of MFRecommenderExample per configuration. The leaderboard is printed and written to sweep_leaderboard.tsv.
+ * <p>
+ * Assuming that preprocess.py created the validation split (convert_mpd with validation=True), change MPD_PATH, the
+ * grid and the budget and run it.
+ */
+public class MFSweepExample {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+
+        int numIter = 10;
+        int maxLength = 500;
+        List<HyperparameterSweep.Config> configs = new ArrayList<>();
+        for (int k : new int[]{50, 100, 200}) {
+            for (double alpha : new double[]{10.0, 50.0, 100.0}) {
+                for (double lambda : new double[]{0.1, 1.0}) {
+                    configs.add(new HyperparameterSweep.Config(k, alpha, lambda, numIter, false));
+                }
+            }
+        }
+
+        // e.g. 2 configurations at a time with half of the cores each, at most 8GB of factors and workspaces
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxConcurrent = 2;
+        HyperparameterSweep sweep = new HyperparameterSweep(split, maxConcurrent, Math.max(1, cores / maxConcurrent), 8L << 30, maxLength);
+        String leaderboard = HyperparameterSweep.format(sweep.run(configs));
+
+        System.out.print(leaderboard);
+        try (PrintStream out = new PrintStream(DATA_PATH + "/sweep_leaderboard.tsv")) {
+            out.print(leaderboard);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import mf.FactorizationSnapshot;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Same grid as MFSweepExample, searched with successive halving: all the configurations get 2 iterations, and only
+ * the best third of them continues with 3 times as many, up to 54 iterations. The leaderboard of the last rung is
+ * written to tuning_leaderboard.tsv and the best model to tuning_best.model. The factors of the configurations that
+ * wait for the rest of their rung are kept in tuning_spill instead of memory.
+ * <p>
+ * Assuming that preprocess.py created the validation split (convert_mpd with validation=True), change MPD_PATH and
+ * run it.
+ */
+public class MFTuningExample {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+
+        int minIter = 2;
+        int maxIter = 54;
+        int eta = 3;
+        int sampleSize = 2000;
+        int maxLength = 500;
+        List<HyperparameterSweep.Config> configs = new ArrayList<>();
+        for (int k : new int[]{50, 100, 200}) {
+            for (double alpha : new double[]{10.0, 50.0, 100.0}) {
+                for (double lambda : new double[]{0.1, 1.0}) {
+                    configs.add(new HyperparameterSweep.Config(k, alpha, lambda, maxIter, false));
+                }
+            }
+        }
+
+        SuccessiveHalvingTuner tuner = new SuccessiveHalvingTuner(split, minIter, maxIter, eta, sampleSize, 1987, maxLength);
+        tuner.setSpillDirectory(DATA_PATH + "/tuning_spill");
+        String leaderboard = HyperparameterSweep.format(tuner.run(configs));
+
+        System.out.print(leaderboard);
+        try (PrintStream out = new PrintStream(DATA_PATH + "/tuning_leaderboard.tsv")) {
+            out.print(leaderboard);
+        }
+        FactorizationSnapshot.save(tuner.getBestFactorization(), DATA_PATH + "/tuning_best.model");
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import nn.item.neighborhood.ItemNeighborhood;
+import nn.item.neighborhood.ItemNeighborhoods;
+import nn.item.sim.ItemSimilarities;
+import nn.item.sim.ItemSimilarity;
+import org.ranksys.core.util.tuples.Tuple2id;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Recall and speed of the MinHash LSH neighborhoods of ItemSimilarities.minHash for several numbers of bands and rows:
+ * recall@k of the neighbors of a random sample of tracks with respect to ItemNeighborhoods.topK, time to build the
+ * signatures, throughput in tracks per second and candidates per track. Change MPD_PATH and run it.
+ */
+public class MinHashReport {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+        String userPath = DATA_PATH + "/u_index.txt";
+        String itemPath = DATA_PATH + "/i_index.txt";
+        String trainDataPath = DATA_PATH + "/mpd_converted_track_train.csv";
+
+        int k = 100;
+        int sampleSize = 10000;
+        int[][] bandsRows = {{16, 1}, {32, 2}, {64, 2}, {64, 3}, {128, 4}};
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(userPath, lp));
+        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(itemPath, lp));
+        FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SpotifyPreferenceReader.get().read(trainDataPath, lp, lp), userIndex, itemIndex);
+        System.out.println("Loaded training data!");
+
+        Map<String, ItemSimilarity<Long>> similarities = new LinkedHashMap<>();
+        similarities.put("set jaccard", ItemSimilarities.setJaccard(trainData, true));
+        similarities.put("set cosine 0.5", ItemSimilarities.setCosine(trainData, 0.5, true));
+
+        int[] sample = new Random(1987).ints(0, trainData.numItems()).limit(sampleSize).toArray();
+
+        similarities.forEach((name, similarity) -> {
+            ItemNeighborhood<Long> exact = ItemNeighborhoods.topK(similarity, k);
+            long time0 = System.nanoTime();
+            List<Set<Integer>> expected = IntStream.of(sample).parallel()
+                    .mapToObj(iidx -> exact.getNeighbors(iidx).map(Tuple2id::v1).collect(toSet()))
+                    .collect(toList());
+            double exactRate = sampleSize / ((System.nanoTime() - time0) / 1_000_000_000.0);
+            System.out.println(String.format("%s\texact\t%.0f tracks/s", name, exactRate));
+
+            for (int[] br : bandsRows) {
+                time0 = System.nanoTime();
+                ItemSimilarity<Long> minHash = ItemSimilarities.minHash(similarity, br[0], br[1], 1987);
+                double buildTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+
+                ItemNeighborhood<Long> approximate = ItemNeighborhoods.topK(minHash, k);
+                time0 = System.nanoTime();
+                double recall = IntStream.range(0, sampleSize).parallel()
+                        .mapToDouble(j -> {
+                            Set<Integer> neighbors = expected.get(j);
+                            if (neighbors.isEmpty()) {
+                                return 1.0;
+                            }
+                            return approximate.getNeighbors(sample[j]).filter(is -> neighbors.contains(is.v1)).count() / (double) neighbors.size();
+                        })
+                        .sum() / sampleSize;
+                double rate = sampleSize / ((System.nanoTime() - time0) / 1_000_000_000.0);
+
+                System.out.println(String.format("%s\tbands=%d\trows=%d\trecall@%d=%.4f\tbuild=%.1fs\t%.0f tracks/s\tspeed-up=%.1f\t%s",
+                        name, br[0], br[1], k, recall, buildTime, rate, rate / exactRate, minHash.similarity()));
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import mf.BinaryMFFactorizer;
+import mf.rec.FlatMFRecommender;
+import mf.rec.NormSortedMFRecommender;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Compares exact top-500 retrieval with norm-sorted item factors against scoring all the tracks on the validation
+ * split: whether the recommendations are identical, time per playlist and how many track vectors were scored per
+ * playlist. Change MPD_PATH and run it.
+ */
+public class NormSortedReport {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+        FastPreferenceData<Long, Long> trainData = split.getTrainData();
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        int numIter = 10;
+        int maxLength = 500;
+
+        Factorization<Long, Long> factorization = new BinaryMFFactorizer<Long, Long>(lambda, alpha, numIter).factorize(k, trainData);
+
+        List<Long> playlists = split.getTestData().keySet().stream().sorted().collect(toList());
+        Function<Long, IntPredicate> filter = FastFilters.notInTrain(trainData);
+        List<Integer> scored = new ArrayList<>();
+
+        FlatMFRecommender<Long, Long> flat = new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), factorization);
+        NormSortedMFRecommender<Long, Long> normSorted = new NormSortedMFRecommender<>(split.getUserIndex(), split.getItemIndex(), factorization, 256, scored::add);
+
+        double flatTime = 0.0;
+        double normSortedTime = 0.0;
+        int differences = 0;
+        for (Long u : playlists) {
+            int uidx = flat.user2uidx(u);
+            long time0 = System.nanoTime();
+            List<Tuple2id> expected = flat.getRecommendation(uidx, maxLength, filter.apply(u)).getIidxs();
+            long time1 = System.nanoTime();
+            List<Tuple2id> actual = normSorted.getRecommendation(uidx, maxLength, filter.apply(u)).getIidxs();
+            long time2 = System.nanoTime();
+            flatTime += time1 - time0;
+            normSortedTime += time2 - time1;
+            if (!expected.equals(actual)) {
+                differences++;
+            }
+        }
+
+        Collections.sort(scored);
+        int numItems = trainData.numItems();
+        double mean = scored.stream().mapToInt(Integer::intValue).average().orElse(0.0);
+        System.out.println(String.format("playlists=%d\tdifferent=%d", playlists.size(), differences));
+        System.out.println(String.format("all tracks\tper-playlist=%.3fms\tscored=%d", flatTime / 1_000_000 / playlists.size(), numItems));
+        System.out.println(String.format("norm-sorted\tper-playlist=%.3fms\tscored mean=%.0f (%.1f%%) median=%d p90=%d max=%d",
+                normSortedTime / 1_000_000 / playlists.size(), mean, 100 * mean / numItems,
+                scored.get(scored.size() / 2), scored.get(scored.size() * 9 / 10), scored.get(scored.size() - 1)));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.BinaryMFFactorizer;
+import mf.FactorMatrix;
+import mf.FactorizationSnapshot;
+import mf.FlatFactorization;
+import mf.ProductQuantizedFactors;
+import mf.rec.FlatMFRecommender;
+import mf.rec.PQMFRecommender;
+
+import java.io.IOException;
+
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Memory and accuracy of product quantized item factors on the validation split. For several numbers of subspaces,
+ * prints the footprint of one model (heap: user factors and codes; mapped: exact item factors read by the re-ranking)
+ * and the loss of R-precision and NDCG compared with the uncompressed factorization, with approximate scores only
+ * and with exact re-ranking of a shortlist, whose item factors are mapped from a snapshot in DATA_PATH.
+ * Change MPD_PATH and run it.
+ */
+public class PQReport {
+    public static void main(String[] args) throws IOException {
+        String MPD_PATH = "/run/media/messe/roziklinux/spotify_challenge/mpd.v1/"; // replace with your path!
+        String DATA_PATH = MPD_PATH + "/exp_data/";
+
+        System.out.println("Start loading the validation data!");
+        ValidationSplit split = ValidationSplit.load(DATA_PATH);
+        System.out.println("Finished loading the validation data!");
+
+        int k = 100;
+        double alpha = 50.0;
+        double lambda = 0.1;
+        int numIter = 10;
+        int maxLength = 500;
+        int[] subspaces = {10, 25, 50};
+        int[] shortlists = {0, 2000};
+
+        Factorization<Long, Long> factorization = new BinaryMFFactorizer<Long, Long>(lambda, alpha, numIter).factorize(k, split.getTrainData());
+        FlatFactorization<Long, Long> flat = FlatFactorization.of(factorization);
+
+        ValidationSplit.Result exact = split.evaluate(new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), flat), maxLength);
+        long exactBytes = 8L * (flat.getUserFactors().rows() + flat.getItemFactors().rows()) * flat.getItemFactors().columns();
+        System.out.println(String.format("exact\theap=%.1fMB\tmapped=0.0MB\t%s", exactBytes / 1e6, exact));
+
+        // the re-ranking reads the exact item factors from a mapped snapshot instead of the heap
+        String modelPath = DATA_PATH + "/pq_report.model";
+        FactorizationSnapshot.save(flat, modelPath);
+        FactorMatrix mappedItemFactors = FactorizationSnapshot.load(modelPath, lp, lp).getItemFactors();
+
+        for (int m : subspaces) {
+            ProductQuantizedFactors codes = ProductQuantizedFactors.quantize(flat.getItemFactors(), m, 256, 20, 100_000, 1987);
+            for (int shortlist : shortlists) {
+                PQMFRecommender<Long, Long> recommender = new PQMFRecommender<>(split.getUserIndex(), split.getItemIndex(),
+                        flat.getUserFactors(), codes, shortlist > 0 ? mappedItemFactors : null, shortlist);
+                ValidationSplit.Result result = split.evaluate(recommender, maxLength);
+                System.out.println(String.format("m=%d shortlist=%d\theap=%.1fMB\tmapped=%.1fMB\t%s\tloss R-prec=%.5f NDCG=%.5f", m, shortlist,
+                        recommender.heapBytes() / 1e6, recommender.mappedBytes() / 1e6, result,
+                        exact.rPrecision - result.rPrecision, exact.ndcg - result.ndcg));
+            }
+        }
+    }
+}
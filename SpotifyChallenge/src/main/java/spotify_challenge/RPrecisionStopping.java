@@ -0,0 +1,114 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import mf.EarlyStopping;
+import mf.FlatFactorization;
+import mf.rec.FlatMFRecommender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Stops the factorization when the R-precision on a sample of the validation playlists has not improved by at least
+ * a minimum amount for a number of consecutive iterations.
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class RPrecisionStopping<U extends Comparable<U>, I> implements EarlyStopping<U, I> {
+
+    private static final Logger LOG = Logger.getLogger(RPrecisionStopping.class.getName());
+
+    private final List<U> users;
+    private final Map<U, Set<I>> testData;
+    private final int maxLength;
+    private final double minImprovement;
+    private final int patience;
+    private double best;
+    private int misses;
+
+    /**
+     * Constructor.
+     *
+     * @param testData held-out tracks of the validation playlists, whose visible tracks are in the training data
+     * @param sampleSize number of validation playlists that are evaluated
+     * @param maxLength length of the recommendation lists
+     * @param minImprovement minimum increase of R-precision over the best iteration so far
+     * @param patience number of consecutive iterations without improvement before stopping
+     * @param seed random seed of the sample
+     */
+    public RPrecisionStopping(Map<U, Set<I>> testData, int sampleSize, int maxLength, double minImprovement, int patience, long seed) {
+        List<U> all = new ArrayList<>(testData.keySet());
+        Collections.sort(all);
+        Collections.shuffle(all, new Random(seed));
+        this.users = new ArrayList<>(all.subList(0, Math.min(sampleSize, all.size())));
+        this.testData = testData;
+        this.maxLength = maxLength;
+        this.minImprovement = minImprovement;
+        this.patience = patience;
+        this.best = Double.NEGATIVE_INFINITY;
+        this.misses = 0;
+    }
+
+    @Override
+    public boolean stop(int iter, FlatFactorization<U, I> factorization, FastPreferenceData<U, I> data) {
+        FlatMFRecommender<U, I> recommender = new FlatMFRecommender<>(factorization, factorization, factorization);
+        Function<U, IntPredicate> filter = FastFilters.notInTrain(data);
+
+        double rPrecision = users.parallelStream().mapToDouble(u -> {
+            List<I> recommended = recommender.getRecommendation(recommender.user2uidx(u), maxLength, filter.apply(u)).getIidxs().stream()
+                    .map(iv -> recommender.iidx2item(iv.v1))
+                    .collect(toList());
+            return ChallengeMetrics.rPrecision(recommended, testData.get(u));
+        }).sum() / users.size();
+        LOG.log(Level.INFO, String.format("iteration n = %3d R-prec = %.5f", iter, rPrecision));
+
+        if (rPrecision >= best + minImprovement) {
+            misses = 0;
+        } else {
+            misses++;
+        }
+        best = Math.max(best, rPrecision);
+
+        return misses >= patience;
+    }
+
+    /**
+     * The best R-precision so far, -Infinity before the first iteration, and the number of iterations since it.
+     */
+    @Override
+    public double[] state() {
+        return new double[]{best, misses};
+    }
+
+    @Override
+    public void restore(double[] state) {
+        best = state[0];
+        misses = (int) state[1];
+    }
+}
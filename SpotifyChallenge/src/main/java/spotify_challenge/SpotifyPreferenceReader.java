@@ -38,7 +38,8 @@ public class SpotifyPreferenceReader implements PreferencesReader {
 
     @Override
     public <U, I> Stream<Tuple3<U, I, Double>> read(InputStream in, Parser<U> up, Parser<I> ip) throws IOException {
-        return new BufferedReader(new InputStreamReader(in)).lines().map(line -> {
+        // skips the header written by pandas, e.g. "uid,sid,title"
+        return new BufferedReader(new InputStreamReader(in)).lines().filter(line -> !line.isEmpty() && Character.isDigit(line.charAt(0))).map(line -> {
             CharSequence[] tokens = split(line, ',', 4);
             U user = up.parse(tokens[0]);
             I item = ip.parse(tokens[1]);
@@ -0,0 +1,247 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import mf.BinaryMFFactorizer;
+import mf.FactorizationSnapshot;
+import mf.FlatFactorization;
+import mf.rec.FlatMFRecommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Comparator.comparingDouble;
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Successive halving (Jamieson and Talwalkar, AISTATS 2016) over MF configurations. All the configurations are
+ * trained for minIter iterations and evaluated on a sample of the validation playlists; the best 1/eta of them
+ * survive, are trained up to eta times as many iterations and evaluated again, and so on until one configuration is
+ * left or maxIter is reached. The survivors continue from their factors in memory: an ALS iteration depends only on
+ * the current factors, so a configuration trained in several rungs ends with the same factors as one trained for all
+ * its iterations at once.
+ * <p>
+ * The configurations of the last rung are evaluated on all the validation playlists. The numIter of the
+ * configurations is ignored, the entries of the leaderboard carry the number of iterations actually trained.
+ * <p>
+ * By default the factors of all the configurations of a rung stay in memory until the rung ends, e.g. about 55 GB
+ * for the 18 configurations of MFTuningExample. With {@link #setSpillDirectory(String)} the factors of a
+ * configuration are written to a {@link FactorizationSnapshot} after its evaluation and read back when it continues,
+ * so only the configuration being trained keeps its factors on the heap.
+ */
+public class SuccessiveHalvingTuner {
+
+    private static final Logger LOG = Logger.getLogger(SuccessiveHalvingTuner.class.getName());
+
+    private final ValidationSplit split;
+    private final int minIter;
+    private final int maxIter;
+    private final int eta;
+    private final int sampleSize;
+    private final long seed;
+    private final int maxLength;
+    private File spillDirectory = null;
+    private Factorization<Long, Long> best = null;
+
+    /**
+     * Constructor.
+     *
+     * @param split validation split
+     * @param minIter iterations of the first rung
+     * @param maxIter maximum number of iterations of a configuration
+     * @param eta 1/eta of the configurations survive every rung, which has eta times as many iterations
+     * @param sampleSize number of validation playlists of the intermediate evaluations
+     * @param seed random seed of the sample of validation playlists
+     * @param maxLength length of the recommendation lists that are evaluated
+     */
+    public SuccessiveHalvingTuner(ValidationSplit split, int minIter, int maxIter, int eta, int sampleSize, long seed, int maxLength) {
+        if (eta < 2) {
+            throw new IllegalArgumentException("eta must be at least 2, not " + eta);
+        }
+        this.split = split;
+        this.minIter = minIter;
+        this.maxIter = maxIter;
+        this.eta = eta;
+        this.sampleSize = sampleSize;
+        this.seed = seed;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Writes the factors of the configurations that are not being trained to a directory instead of keeping them in
+     * memory. The files are deleted at the end of the run.
+     *
+     * @param directory directory of the snapshots, null to keep all the factors in memory
+     */
+    public void setSpillDirectory(String directory) {
+        this.spillDirectory = directory == null ? null : new File(directory);
+    }
+
+    /**
+     * Runs successive halving.
+     *
+     * @param configs configurations
+     * @return leaderboard of the configurations of the last rung, best R-precision on all the validation playlists
+     * first
+     */
+    public List<HyperparameterSweep.Entry> run(List<HyperparameterSweep.Config> configs) {
+        long time0 = System.nanoTime();
+        ValidationSplit sample = split.sample(sampleSize, seed);
+        BinaryMFFactorizer.SharedLists lists = new BinaryMFFactorizer.SharedLists(split.getTrainData());
+
+        List<Trial> trials = new ArrayList<>();
+        configs.forEach(config -> trials.add(new Trial(config, trials.size())));
+        long iterations = 0;
+        int budget = Math.min(minIter, maxIter);
+        for (int rung = 0; ; rung++) {
+            for (Trial trial : trials) {
+                iterations += budget - trial.iter;
+                train(trial, budget, lists);
+                trial.result = sample.evaluate(new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), trial.factorization), maxLength);
+                spill(trial);
+            }
+            trials.sort(comparingDouble((Trial t) -> t.result.rPrecision).reversed());
+            LOG.log(Level.INFO, String.format("rung %d: %d configurations, %d iterations, best %s %s", rung, trials.size(), budget, trials.get(0).config, trials.get(0).result));
+
+            if (trials.size() == 1 || budget >= maxIter) {
+                break;
+            }
+            // the factors of the discarded configurations can be collected from here on
+            List<Trial> discarded = trials.subList((trials.size() + eta - 1) / eta, trials.size());
+            discarded.forEach(SuccessiveHalvingTuner::delete);
+            discarded.clear();
+            budget = (int) Math.min(maxIter, (long) budget * eta);
+        }
+
+        for (Trial trial : trials) {
+            // spilled factors are evaluated from the mapped snapshot
+            Factorization<Long, Long> factorization = trial.factorization != null ? trial.factorization : load(trial);
+            trial.result = split.evaluate(new FlatMFRecommender<>(split.getUserIndex(), split.getItemIndex(), factorization), maxLength);
+        }
+        trials.sort(comparingDouble((Trial t) -> t.result.rPrecision).reversed());
+        best = trials.get(0).factorization != null ? trials.get(0).factorization : restore(trials.get(0));
+        trials.forEach(SuccessiveHalvingTuner::delete);
+
+        List<HyperparameterSweep.Entry> entries = new ArrayList<>();
+        for (Trial trial : trials) {
+            HyperparameterSweep.Config config = new HyperparameterSweep.Config(trial.config.k, trial.config.alpha, trial.config.lambda, trial.iter, trial.config.floatFactors);
+            entries.add(new HyperparameterSweep.Entry(config, trial.result, trial.trainTime));
+        }
+
+        LOG.log(Level.INFO, String.format("successive halving of %d configurations in %.2fs: %d iterations, %.1f%% of %d for a full sweep",
+                configs.size(), (System.nanoTime() - time0) / 1_000_000_000.0, iterations, 100.0 * iterations / ((long) configs.size() * maxIter), (long) configs.size() * maxIter));
+        return entries;
+    }
+
+    /**
+     * Factorization of the first configuration of the leaderboard of the last run.
+     *
+     * @return best factorization, null before the first run
+     */
+    public Factorization<Long, Long> getBestFactorization() {
+        return best;
+    }
+
+    private void train(Trial trial, int budget, BinaryMFFactorizer.SharedLists lists) {
+        if (budget <= trial.iter) {
+            return;
+        }
+        long time0 = System.nanoTime();
+        HyperparameterSweep.Config config = trial.config;
+        BinaryMFFactorizer<Long, Long> factorizer = new BinaryMFFactorizer<>(config.lambda, config.lambda, config.alpha, budget - trial.iter, config.floatFactors);
+        factorizer.setSharedLists(lists);
+        if (trial.iter == 0) {
+            trial.factorization = factorizer.factorize(config.k, split.getTrainData());
+        } else {
+            if (trial.factorization == null) {
+                trial.factorization = restore(trial);
+            }
+            factorizer.factorize(trial.factorization, split.getTrainData());
+        }
+        trial.iter = budget;
+        trial.trainTime += (System.nanoTime() - time0) / 1_000_000_000.0;
+    }
+
+    /**
+     * Writes the factors of a trial to the spill directory, if any, and drops them from memory.
+     */
+    private void spill(Trial trial) {
+        if (spillDirectory == null) {
+            return;
+        }
+        spillDirectory.mkdirs();
+        trial.file = new File(spillDirectory, "trial-" + trial.id + ".snap");
+        try {
+            FactorizationSnapshot.save(trial.factorization, trial.file.getPath());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        trial.factorization = null;
+    }
+
+    /**
+     * Maps the spilled factors of a trial.
+     */
+    private static FlatFactorization<Long, Long> load(Trial trial) {
+        try {
+            return FactorizationSnapshot.load(trial.file.getPath(), lp, lp);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Copies the spilled factors of a trial onto the heap, so that they can be trained further. The snapshot keeps
+     * the rows in the order of the indexes of the split.
+     */
+    private FlatFactorization<Long, Long> restore(Trial trial) {
+        FlatFactorization<Long, Long> mapped = load(trial);
+        return new FlatFactorization<>(split.getUserIndex(), split.getItemIndex(),
+                mapped.getUserFactors().copy(), mapped.getItemFactors().copy());
+    }
+
+    private static void delete(Trial trial) {
+        if (trial.file != null) {
+            trial.file.delete();
+            trial.file = null;
+        }
+    }
+
+    /**
+     * State of a configuration: its factors (or the snapshot they were spilled to), the iterations trained so far and
+     * the last evaluation.
+     */
+    private static final class Trial {
+
+        private final HyperparameterSweep.Config config;
+        private final int id;
+        private Factorization<Long, Long> factorization = null;
+        private File file = null;
+        private int iter = 0;
+        private double trainTime = 0.0;
+        private ValidationSplit.Result result = null;
+
+        private Trial(HyperparameterSweep.Config config, int id) {
+            this.config = config;
+            this.id = id;
+        }
+    }
+}
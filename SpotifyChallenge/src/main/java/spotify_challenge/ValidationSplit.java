@@ -0,0 +1,183 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package spotify_challenge;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
+import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.ranksys.formats.parsing.Parsers.lp;
+
+/**
+ * Validation split created by preprocess.py (exp_data/validation): the training data is train.csv plus the visible
+ * part of the validation playlists (validation_tr.csv), and the held-out tracks of validation_te.csv are used to
+ * compute the challenge metrics of a recommender.
+ */
+public class ValidationSplit {
+
+    private final FastUserIndex<Long> userIndex;
+    private final FastItemIndex<Long> itemIndex;
+    private final FastPreferenceData<Long, Long> trainData;
+    private final Map<Long, Set<Long>> testData;
+
+    /**
+     * Constructor.
+     *
+     * @param userIndex fast user index
+     * @param itemIndex fast item index
+     * @param trainData training data, including the visible tracks of the validation playlists
+     * @param testData held-out tracks of every validation playlist
+     */
+    public ValidationSplit(FastUserIndex<Long> userIndex, FastItemIndex<Long> itemIndex, FastPreferenceData<Long, Long> trainData, Map<Long, Set<Long>> testData) {
+        this.userIndex = userIndex;
+        this.itemIndex = itemIndex;
+        this.trainData = trainData;
+        this.testData = testData;
+    }
+
+    /**
+     * Loads the validation split.
+     *
+     * @param dataPath exp_data folder created by preprocess.py
+     * @return validation split
+     * @throws IOException when the files cannot be read
+     */
+    public static ValidationSplit load(String dataPath) throws IOException {
+        String userPath = dataPath + "/u_index.txt";
+        String itemPath = dataPath + "/i_index.txt";
+        String trainPath = dataPath + "/validation/train.csv";
+        String visiblePath = dataPath + "/validation/validation_tr.csv";
+        String testPath = dataPath + "/validation/validation_te.csv";
+
+        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(userPath, lp));
+        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(itemPath, lp));
+        FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(Stream.concat(
+                SpotifyPreferenceReader.get().read(trainPath, lp, lp),
+                SpotifyPreferenceReader.get().read(visiblePath, lp, lp)), userIndex, itemIndex);
+
+        Map<Long, Set<Long>> testData = new HashMap<>();
+        SpotifyPreferenceReader.get().read(testPath, lp, lp).forEach(t -> {
+            testData.computeIfAbsent(t.v1, u -> new HashSet<>()).add(t.v2);
+        });
+
+        return new ValidationSplit(userIndex, itemIndex, trainData, testData);
+    }
+
+    public FastUserIndex<Long> getUserIndex() {
+        return userIndex;
+    }
+
+    public FastItemIndex<Long> getItemIndex() {
+        return itemIndex;
+    }
+
+    public FastPreferenceData<Long, Long> getTrainData() {
+        return trainData;
+    }
+
+    public Map<Long, Set<Long>> getTestData() {
+        return testData;
+    }
+
+    /**
+     * Split with the same training data and a uniform sample of the validation playlists, e.g. to compare many
+     * models quickly.
+     *
+     * @param size number of validation playlists, all of them if it is larger than their number
+     * @param seed random seed
+     * @return split with a sample of the validation playlists
+     */
+    public ValidationSplit sample(int size, long seed) {
+        List<Long> playlists = testData.keySet().stream().sorted().collect(toList());
+        Collections.shuffle(playlists, new Random(seed));
+        Map<Long, Set<Long>> sample = new HashMap<>();
+        playlists.stream().limit(size).forEach(u -> sample.put(u, testData.get(u)));
+
+        return new ValidationSplit(userIndex, itemIndex, trainData, sample);
+    }
+
+    /**
+     * Averages the challenge metrics of a recommender over the validation playlists. Tracks already in the
+     * playlist are excluded from the recommendations.
+     *
+     * @param recommender recommender trained on {@link #getTrainData()}
+     * @param maxLength length of the recommendation lists
+     * @return mean R-precision, NDCG and clicks
+     */
+    public Result evaluate(FastRecommender<Long, Long> recommender, int maxLength) {
+        Function<Long, IntPredicate> filter = FastFilters.notInTrain(trainData);
+
+        double[][] metrics = testData.entrySet().parallelStream().map(e -> {
+            int uidx = recommender.user2uidx(e.getKey());
+            List<Long> recommended = recommender.getRecommendation(uidx, maxLength, filter.apply(e.getKey())).getIidxs().stream()
+                    .map(iv -> recommender.iidx2item(iv.v1))
+                    .collect(toList());
+            return new double[]{
+                    ChallengeMetrics.rPrecision(recommended, e.getValue()),
+                    ChallengeMetrics.ndcg(recommended, e.getValue()),
+                    ChallengeMetrics.clicks(recommended, e.getValue())};
+        }).toArray(double[][]::new);
+
+        double[] mean = new double[3];
+        for (double[] m : metrics) {
+            for (int j = 0; j < mean.length; j++) {
+                mean[j] += m[j] / metrics.length;
+            }
+        }
+
+        return new Result(mean[0], mean[1], mean[2]);
+    }
+
+    /**
+     * Mean challenge metrics of a recommender.
+     */
+    public static class Result {
+
+        public final double rPrecision;
+        public final double ndcg;
+        public final double clicks;
+
+        public Result(double rPrecision, double ndcg, double clicks) {
+            this.rPrecision = rPrecision;
+            this.ndcg = ndcg;
+            this.clicks = clicks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("R-prec=%.5f\tNDCG=%.5f\tclicks=%.4f", rPrecision, ndcg, clicks);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * # Licensed under the Apache License, Version 2.0 (the "License");
+ * # you may not use this file except in compliance with the License.
+ * # You may obtain a copy of the License at
+ * #
+ * #     http://www.apache.org/licenses/LICENSE-2.0
+ * #
+ * # Unless required by applicable law or agreed to in writing,
+ * # software distributed under the License is distributed on an
+ * # "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * # KIND, either express or implied.  See the License for the
+ * # specific language governing permissions and limitations
+ * # under the License.
+ */
+package mf;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The per-thread busy times of {@link RowScheduler} add up to the work done by the rows.
+ */
+public class RowSchedulerTest {
+
+    private static void check(int numThreads, boolean balanced) {
+        RowScheduler scheduler = new RowScheduler(numThreads, balanced, 4);
+        int[] rows = IntStream.range(0, 2000).toArray();
+        LongAdder work = new LongAdder();
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        // every new thread waits for the others, so that all the workers are alive at the same time
+        CountDownLatch allWorkers = new CountDownLatch(numThreads);
+
+        for (int rep = 0; rep < 3; rep++) {
+            scheduler.forEach(rows, row -> 1 + row % 7, row -> {
+                if (names.add(Thread.currentThread().getName())) {
+                    allWorkers.countDown();
+                    try {
+                        allWorkers.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                long t0 = System.nanoTime();
+                long spin = 20_000L * (1 + row % 7);
+                while (System.nanoTime() - t0 < spin) {
+                    // busy wait, the rows must keep their thread busy
+                }
+                work.add(System.nanoTime() - t0);
+            });
+        }
+
+        // the workers use the slots 0 to numThreads - 1, one each
+        assertEquals(0, allWorkers.getCount());
+        Set<String> expected = IntStream.range(0, numThreads).mapToObj(slot -> "mf-worker-" + slot).collect(toSet());
+        assertEquals(expected, names);
+
+        long[] times = scheduler.busyTimes();
+        assertEquals(numThreads + 1, times.length);
+        long busy = 0;
+        for (long time : times) {
+            busy += time;
+        }
+        // every busy interval contains the work of its rows, plus a little loop overhead, and the first wait
+        assertTrue("busy " + busy + " < work " + work.sum(), busy >= work.sum());
+        assertTrue("busy " + busy + " >> work " + work.sum(), busy <= 1.05 * work.sum() + numThreads * 10_000_000_000L);
+    }
+
+    @Test
+    public void balancedBusyTimesAddUpToTheWork() {
+        check(3, true);
+        check(6, true);
+    }
+
+    @Test
+    public void streamBusyTimesAddUpToTheWork() {
+        check(3, false);
+        check(6, false);
+    }
+}